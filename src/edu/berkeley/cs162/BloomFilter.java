@@ -0,0 +1,167 @@
+/**
+ * Bloom filter for negative lookups in the key-value store
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over string keys. mightContain never answers false for a
+ * key that was added, and answers true for a key that was not with roughly
+ * the false positive rate the filter was sized for, as long as no more than
+ * capacity keys are added.
+ *
+ * Keys cannot be taken out again. Owners count their deletions and rebuild
+ * the filter from the live keys once too many have gone stale or capacity
+ * is exceeded. Adds and lookups are lock-free.
+ */
+class BloomFilter {
+	private static final double LN2 = Math.log(2);
+
+	private long capacity = 0;
+	private double falsePositiveRate = 0;
+	private long bits = 0;
+	private int hashes = 0;
+	private AtomicLongArray words = null;
+	private AtomicLong bitsSet = new AtomicLong();
+	private AtomicLong added = new AtomicLong();
+	private AtomicLong removed = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            number of keys the filter is sized for
+	 * @param falsePositiveRate
+	 *            target rate of false positives once capacity keys are in,
+	 *            between 0 and 1 exclusive. Costs -ln(rate) / ln(2)^2 bits
+	 *            per key: 4.8 at 10%, 9.6 at 1%, 14.4 at 0.1%.
+	 */
+	BloomFilter(long capacity, double falsePositiveRate) {
+		this.capacity = Math.max(1, capacity);
+		this.falsePositiveRate = falsePositiveRate;
+		bits = Math.max(64, (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (LN2 * LN2)));
+		bits = (bits + 63) / 64 * 64;
+		hashes = Math.max(1, (int) Math.round((double) bits / this.capacity * LN2));
+		words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, bits / 64));
+		bits = words.length() * 64L;
+	}
+
+	void add(String key) {
+		long hash = hash(key);
+		long h1 = hash >>> 32;
+		long h2 = hash & 0xffffffffL;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long old = words.get(word);
+			while ((old & mask) == 0) {
+				if (words.compareAndSet(word, old, old | mask)) {
+					bitsSet.incrementAndGet();
+					break;
+				}
+				old = words.get(word);
+			}
+		}
+		added.incrementAndGet();
+	}
+
+	/**
+	 * @return false if key was certainly never added
+	 */
+	boolean mightContain(String key) {
+		long hash = hash(key);
+		long h1 = hash >>> 32;
+		long h2 = hash & 0xffffffffL;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records that a key was deleted. Its bits stay set.
+	 */
+	void removed() {
+		removed.incrementAndGet();
+	}
+
+	long getCapacity() {
+		return capacity;
+	}
+
+	double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	long getAdded() {
+		return added.get();
+	}
+
+	long getRemoved() {
+		return removed.get();
+	}
+
+	double getBitsPerKey() {
+		return (double) bits / capacity;
+	}
+
+	long getSizeInBytes() {
+		return bits / 8;
+	}
+
+	/**
+	 * @return the false positive rate to expect at the current fill, from
+	 *         the fraction of bits set
+	 */
+	double getExpectedFalsePositiveRate() {
+		return Math.pow((double) bitsSet.get() / bits, hashes);
+	}
+
+	/**
+	 * 64-bit FNV-1a over the key's chars, finished with the MurmurHash3
+	 * mixer so both halves are usable as independent hashes.
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe53ef5ffL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
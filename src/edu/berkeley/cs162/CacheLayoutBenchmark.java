@@ -0,0 +1,101 @@
+/**
+ * Throughput and allocation of KVCache gets and puts
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Drives one thread of gets and puts of preallocated keys and values at a
+ * KVCache, without the AutoGrader delays, and reports operations per
+ * second and bytes allocated per operation. The key set is twice what the
+ * cache holds, so puts evict and gets miss about half the time. Since the
+ * values are allocated up front, any allocation reported is the cache's
+ * own. The thread is single, so no set locks are taken.
+ */
+public class CacheLayoutBenchmark {
+
+	/**
+	 * @return bytes allocated so far by the current thread, or -1 if the
+	 *         JVM does not count them
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static long run(KVCache cache, String[] keys, String[] values, int[] picks, int putPercent) {
+		long hits = 0;
+		for (int i = 0; i < picks.length; i++) {
+			int k = picks[i];
+			if (i % 100 < putPercent)
+				cache.put(keys[k], values[k]);
+			else if (cache.get(keys[k]) != null)
+				hits++;
+		}
+		return hits;
+	}
+
+	/**
+	 * @param args
+	 *            [ops [putPercent [numSets maxElemsPerSet]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		int ops = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		int putPercent = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int numSets = args.length > 3 ? Integer.parseInt(args[2]) : 1024;
+		int maxElemsPerSet = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		AutoGrader.setDelays(0, 0);
+		int numKeys = 2 * numSets * maxElemsPerSet;
+		String[] keys = new String[numKeys];
+		String[] values = new String[numKeys];
+		for (int i = 0; i < numKeys; i++) {
+			keys[i] = "key" + i;
+			values[i] = "value" + i;
+		}
+		int[] picks = new int[ops];
+		Random random = new Random(0);
+		for (int i = 0; i < ops; i++)
+			picks[i] = random.nextInt(numKeys);
+
+		KVCache cache = new KVCache(numSets, maxElemsPerSet);
+		run(cache, keys, values, picks, putPercent);
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		long hits = run(cache, keys, values, picks, putPercent);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+		System.out.println(String.format("ops=%d puts=%d%% Mops/s=%.2f bytesPerOp=%.1f getHits=%d", ops, putPercent,
+				ops / seconds / 1e6, allocated < 0 ? Double.NaN : (double) allocated / ops, hits));
+	}
+}
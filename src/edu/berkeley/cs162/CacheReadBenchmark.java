@@ -0,0 +1,149 @@
+/**
+ * Scaling of KVCache reads with threads on a skewed key distribution
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Measures cache read throughput from 1 to 64 threads, through get under
+ * the set's write lock, the only way to read the cache before read
+ * existed, and through read's optimistic path. Keys are drawn from a
+ * Zipf-like distribution, so a few hot sets take most reads, and every
+ * key is cached. The AutoGrader delays are off. Scaling only shows on a
+ * host with as many cores as threads.
+ */
+public class CacheReadBenchmark {
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	/**
+	 * @return picks of key indexes in [0, numKeys), index i drawn with
+	 *         weight 1 / (i + 1)
+	 */
+	static int[] zipf(int numKeys, int count, long seed) {
+		double[] cumulative = new double[numKeys];
+		double sum = 0;
+		for (int i = 0; i < numKeys; i++) {
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		Random random = new Random(seed);
+		int[] picks = new int[count];
+		for (int i = 0; i < count; i++) {
+			double target = random.nextDouble() * sum;
+			int lo = 0;
+			int hi = numKeys - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (cumulative[mid] < target)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			picks[i] = lo;
+		}
+		return picks;
+	}
+
+	/**
+	 * @return reads per second of threads reading for millis
+	 */
+	private static double run(final KVCache cache, final String[] keys, int threads, final boolean optimistic,
+			long millis) throws InterruptedException {
+		final AtomicLong ops = new AtomicLong();
+		final long deadline = System.nanoTime() + millis * 1000000;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int[] picks = zipf(keys.length, 1 << 16, t);
+			workers[t] = new Thread("benchmark " + t) {
+				public void run() {
+					long done = 0;
+					while ((done & 1023) != 0 || System.nanoTime() < deadline) {
+						String key = keys[picks[(int) (done & 0xffff)]];
+						if (optimistic) {
+							cache.read(key);
+						} else {
+							Lock lock = cache.getWriteLock(key);
+							lock.lock();
+							try {
+								cache.get(key);
+							} finally {
+								lock.unlock();
+							}
+						}
+						done++;
+					}
+					ops.addAndGet(done);
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		return ops.get() / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * @param args
+	 *            [millisPerRun [numSets maxElemsPerSet]]
+	 */
+	public static void main(String[] args) throws Exception {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+		int numSets = args.length > 2 ? Integer.parseInt(args[1]) : 1024;
+		int maxElemsPerSet = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		AutoGrader.setDelays(0, 0);
+		KVCache cache = new KVCache(numSets, maxElemsPerSet);
+		// fill each set to its size so every key stays cached
+		int[] filled = new int[numSets];
+		String[] keys = new String[numSets * maxElemsPerSet];
+		int numKeys = 0;
+		for (int i = 0; numKeys < keys.length; i++) {
+			String key = "key" + i;
+			int set = (key.hashCode() & 0x7fffffff) % numSets;
+			if (filled[set] == maxElemsPerSet)
+				continue;
+			filled[set]++;
+			keys[numKeys++] = key;
+			cache.put(key, "value" + i);
+		}
+
+		System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+		System.out.println(String.format("%8s %12s %12s   (Mops/s)", "threads", "locked get", "read"));
+		for (int threads : THREADS) {
+			double locked = run(cache, keys, threads, false, millis);
+			double optimistic = run(cache, keys, threads, true, millis);
+			System.out.println(String.format("%8d %12.2f %12.2f", threads, locked / 1e6, optimistic / 1e6));
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Replays recorded key traces against each KVCache eviction policy
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the hit ratio each {@link KVCache.Policy} would get on a recorded
+ * trace. A trace has one request per line: "get key", "put key" or "del key",
+ * or just a key, which is a get. A get that misses is followed by a put of
+ * the key, as a server filling its cache on demand would do. The cache is
+ * driven directly by a single thread, without the AutoGrader delays.
+ */
+public class CacheTraceReplay {
+	private static final int GET = 0;
+	private static final int PUT = 1;
+	private static final int DEL = 2;
+
+	private List<String> keys = new ArrayList<String>();
+	private List<Integer> ops = new ArrayList<Integer>();
+
+	/**
+	 * Reads a trace.
+	 * @throws IOException if the file cannot be read
+	 */
+	public CacheTraceReplay(File trace) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(trace), KVLog.UTF8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty())
+					continue;
+				int op = GET;
+				if (line.startsWith("get ")) {
+					line = line.substring(4);
+				} else if (line.startsWith("put ")) {
+					op = PUT;
+					line = line.substring(4);
+				} else if (line.startsWith("del ")) {
+					op = DEL;
+					line = line.substring(4);
+				}
+				keys.add(line);
+				ops.add(op);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Runs the trace through a fresh cache.
+	 * @return the number of gets and how many of them hit
+	 */
+	public long[] replay(int numSets, int maxElemsPerSet, KVCache.Policy policy) {
+		KVCache cache = new KVCache(numSets, maxElemsPerSet, policy);
+		long gets = 0;
+		long hits = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			String key = keys.get(i);
+			switch (ops.get(i)) {
+			case GET:
+				gets++;
+				if (cache.probe(key) != null)
+					hits++;
+				else
+					cache.insert(key, key);
+				break;
+			case PUT:
+				cache.insert(key, key);
+				break;
+			default:
+				cache.remove(key);
+			}
+		}
+		return new long[] { gets, hits };
+	}
+
+	/**
+	 * @param args
+	 *            trace file, then optionally the number of sets and the
+	 *            entries per set (default 100 and 10, as Server uses)
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1 && args.length != 3) {
+			System.err.println("usage: CacheTraceReplay <trace> [numSets maxElemsPerSet]");
+			System.exit(1);
+		}
+		int numSets = args.length == 3 ? Integer.parseInt(args[1]) : 100;
+		int maxElemsPerSet = args.length == 3 ? Integer.parseInt(args[2]) : 10;
+		CacheTraceReplay trace = new CacheTraceReplay(new File(args[0]));
+		System.out.println(trace.keys.size() + " requests, " + numSets + " sets of " + maxElemsPerSet);
+		for (KVCache.Policy policy : KVCache.Policy.values()) {
+			long start = System.currentTimeMillis();
+			long[] result = trace.replay(numSets, maxElemsPerSet, policy);
+			System.out.println(String.format("%-9s gets=%d hits=%d hitRatio=%.4f ms=%d", policy, result[0],
+					result[1], result[0] == 0 ? 0.0 : (double) result[1] / result[0],
+					System.currentTimeMillis() - start));
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * Disk tier for the values a memory-bounded store has demoted
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps values as UTF-8 bytes in files, for a store that holds more than
+ * its memory budget. Laid out like a {@link SlabAllocator}: each size class
+ * has a file of equal slots, slot sizes grow by alternating factors of 1.5
+ * and 4/3 from MIN_SLOT_SIZE, and freed slots are reused before a file
+ * grows. Files are never shrunk. Values bigger than MAX_SLOT_SIZE are not
+ * taken.
+ *
+ * The files are scratch space: they are truncated when the tier is
+ * opened, and nothing in them survives a restart.
+ *
+ * Allocation and free are synchronized per size class. Reads and writes
+ * take no lock. As with SlabAllocator, the caller must check after a read
+ * that the handle was not freed meanwhile.
+ */
+class ColdTier {
+	static final int MIN_SLOT_SIZE = 64;
+	static final int MAX_SLOT_SIZE = 4 * 1024 * 1024;
+
+	private File dir = null;
+	private SizeClass[] classes = null;
+	private int[] slotSizes = null;
+	private int compressionThreshold = 0;
+
+	private AtomicLong liveValues = new AtomicLong();
+	private AtomicLong usedBytes = new AtomicLong();
+	private AtomicLong rawBytes = new AtomicLong();
+
+	/**
+	 * Where one value lives on disk. length is the stored size; rawLength
+	 * is the size before compression.
+	 */
+	static final class Handle {
+		final int sizeClass;
+		final int slot;
+		final int length;
+		final int rawLength;
+		final boolean deflated;
+
+		Handle(int sizeClass, int slot, int length, int rawLength, boolean deflated) {
+			this.sizeClass = sizeClass;
+			this.slot = slot;
+			this.length = length;
+			this.rawLength = rawLength;
+			this.deflated = deflated;
+		}
+	}
+
+	private static final class SizeClass {
+		final int slotSize;
+		final FileChannel file;
+		int[] free = new int[16];
+		int freeCount = 0;
+		int fresh = 0; // slots ever handed out
+
+		SizeClass(int slotSize, FileChannel file) {
+			this.slotSize = slotSize;
+			this.file = file;
+		}
+
+		synchronized int allocate() {
+			if (freeCount > 0)
+				return free[--freeCount];
+			return fresh++;
+		}
+
+		synchronized void free(int slot) {
+			if (freeCount == free.length)
+				free = Arrays.copyOf(free, free.length * 2);
+			free[freeCount++] = slot;
+		}
+
+		synchronized long fileSize() {
+			return (long) fresh * slotSize;
+		}
+	}
+
+	/**
+	 * Opens the tier's files in dir, discarding whatever they held.
+	 * @param compressionThreshold smallest value, in bytes, worth trying
+	 *            to compress; 0 never compresses
+	 * @throws IOException if dir or a file in it cannot be created
+	 */
+	ColdTier(File dir, int compressionThreshold) throws IOException {
+		this.dir = dir;
+		this.compressionThreshold = compressionThreshold;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create cold tier directory " + dir);
+		int[] sizes = new int[64];
+		int count = 0;
+		for (int size = MIN_SLOT_SIZE; size <= MAX_SLOT_SIZE; size *= 2) {
+			sizes[count++] = size;
+			if (size + size / 2 <= MAX_SLOT_SIZE)
+				sizes[count++] = size + size / 2;
+		}
+		slotSizes = Arrays.copyOf(sizes, count);
+		classes = new SizeClass[count];
+		for (int i = 0; i < count; i++) {
+			RandomAccessFile file = new RandomAccessFile(new File(dir, "cold-" + slotSizes[i] + ".dat"), "rw");
+			file.setLength(0);
+			classes[i] = new SizeClass(slotSizes[i], file.getChannel());
+		}
+	}
+
+	/**
+	 * Copies value to disk.
+	 * @return the handle to read and eventually free the copy with, or null
+	 *         if the value is too big for this tier
+	 */
+	Handle write(String value) throws IOException {
+		byte[] bytes = value.getBytes(KVLog.UTF8);
+		int rawLength = bytes.length;
+		boolean deflated = false;
+		if (compressionThreshold > 0 && rawLength >= compressionThreshold) {
+			byte[] compressed = ValueCodec.deflate(bytes);
+			if (compressed != null) {
+				bytes = compressed;
+				deflated = true;
+			}
+		}
+		int c = Arrays.binarySearch(slotSizes, bytes.length);
+		if (c < 0)
+			c = -c - 1;
+		if (c == classes.length)
+			return null;
+		int slot = classes[c].allocate();
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		long position = (long) slot * slotSizes[c];
+		try {
+			while (buf.hasRemaining())
+				position += classes[c].file.write(buf, position);
+		} catch (IOException e) {
+			classes[c].free(slot);
+			throw e;
+		}
+		liveValues.incrementAndGet();
+		usedBytes.addAndGet(bytes.length);
+		rawBytes.addAndGet(rawLength);
+		return new Handle(c, slot, bytes.length, rawLength, deflated);
+	}
+
+	/**
+	 * @throws IOException if the file cannot be read, or a compressed value
+	 *             does not inflate because the handle was freed and its
+	 *             slot reused
+	 */
+	String read(Handle handle) throws IOException {
+		SizeClass sizeClass = classes[handle.sizeClass];
+		ByteBuffer buf = ByteBuffer.allocate(handle.length);
+		long position = (long) handle.slot * sizeClass.slotSize;
+		while (buf.hasRemaining()) {
+			int n = sizeClass.file.read(buf, position);
+			if (n < 0)
+				throw new IOException("Cold tier slot beyond end of " + dir);
+			position += n;
+		}
+		byte[] bytes = buf.array();
+		if (handle.deflated)
+			bytes = ValueCodec.inflate(bytes, 0, bytes.length, handle.rawLength);
+		return new String(bytes, KVLog.UTF8);
+	}
+
+	/**
+	 * Returns the handle's slot for reuse. Each handle must be freed at
+	 * most once.
+	 */
+	void free(Handle handle) {
+		classes[handle.sizeClass].free(handle.slot);
+		liveValues.decrementAndGet();
+		usedBytes.addAndGet(-handle.length);
+		rawBytes.addAndGet(-handle.rawLength);
+	}
+
+	void close() throws IOException {
+		for (SizeClass sizeClass : classes)
+			sizeClass.file.close();
+	}
+
+	long getLiveValues() {
+		return liveValues.get();
+	}
+
+	/**
+	 * @return bytes of value data currently on disk
+	 */
+	long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return bytes of disk the tier's files take
+	 */
+	long getFileBytes() {
+		long total = 0;
+		for (SizeClass sizeClass : classes)
+			total += sizeClass.fileSize();
+		return total;
+	}
+
+	String stats() {
+		return String.format("coldValues=%d coldBytes=%d coldRawBytes=%d coldFileBytes=%d",
+				getLiveValues(), getUsedBytes(), rawBytes.get(), getFileBytes());
+	}
+}
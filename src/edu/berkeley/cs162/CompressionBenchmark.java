@@ -0,0 +1,116 @@
+/**
+ * Ratio and speed of value compression on representative payloads
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Random;
+
+/**
+ * Runs ValueCodec over generated payloads near MAX_VAL_SIZE: JSON-like
+ * records, server log lines and random printable text. For each it
+ * reports the compression ratio, deflate and inflate speed in MB of raw
+ * value per second, and the size of a putreq carrying the value with and
+ * without the deflate encoding of KVMessage.
+ */
+public class CompressionBenchmark {
+
+	static String json(Random random, int size) {
+		StringBuilder sb = new StringBuilder(size + 256).append('[');
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("{\"id\":").append(100000 + random.nextInt(900000)).append(",\"user\":\"user")
+					.append(random.nextInt(5000)).append("\",\"active\":").append(random.nextBoolean())
+					.append(",\"score\":").append(random.nextInt(1000)).append(".").append(random.nextInt(100))
+					.append(",\"tags\":[\"alpha\",\"beta\",\"gamma\"],\"region\":\"us-west-")
+					.append(random.nextInt(4)).append("\"},");
+		}
+		return sb.append("{}]").toString();
+	}
+
+	static String logLines(Random random, int size) {
+		String[] levels = { "INFO", "WARN", "DEBUG", "ERROR" };
+		StringBuilder sb = new StringBuilder(size + 256);
+		while (sb.length() < size) {
+			sb.append("2012-03-").append(10 + random.nextInt(20)).append(" 12:").append(10 + random.nextInt(50))
+					.append(':').append(10 + random.nextInt(50)).append(' ').append(levels[random.nextInt(4)])
+					.append(" [worker-").append(random.nextInt(16)).append("] KVServer handled getreq for key ")
+					.append(random.nextInt(1000000)).append(" in ").append(random.nextInt(500)).append("us\n");
+		}
+		return sb.toString();
+	}
+
+	static String printable(Random random, int size) {
+		char[] chars = new char[size];
+		for (int i = 0; i < size; i++)
+			chars[i] = (char) (' ' + random.nextInt(95));
+		return new String(chars);
+	}
+
+	private static int putreqSize(String value, boolean compress) throws KVException {
+		KVMessage msg = new KVMessage("putreq");
+		msg.setKey("key");
+		msg.setValue(value);
+		msg.setCompressValue(compress);
+		return msg.toXML().length();
+	}
+
+	private static void report(String name, String value, int iterations) throws Exception {
+		byte[] raw = value.getBytes(KVLog.UTF8);
+		byte[] deflated = ValueCodec.deflate(raw);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			ValueCodec.deflate(raw);
+		double deflateSeconds = (System.nanoTime() - start) / 1e9;
+		double inflateSeconds = 0;
+		if (deflated != null) {
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				ValueCodec.inflate(deflated, 0, deflated.length, raw.length);
+			inflateSeconds = (System.nanoTime() - start) / 1e9;
+		}
+		double mb = (double) raw.length * iterations / 1e6;
+		System.out.println(String.format("%s: bytes=%d ratio=%s deflateMB/s=%.0f inflateMB/s=%s putreq=%d compressed=%d",
+				name, raw.length, deflated == null ? "kept raw" : String.format("%.1fx", (double) raw.length / deflated.length),
+				mb / deflateSeconds, deflated == null ? "-" : String.format("%.0f", mb / inflateSeconds),
+				putreqSize(value, false), putreqSize(value, true)));
+	}
+
+	/**
+	 * @param args
+	 *            [valueSize [iterations]]
+	 */
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 200 * 1024;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		Random random = new Random(0);
+		report("json", json(random, size), iterations);
+		report("log lines", logLines(random, size), iterations);
+		report("random text", printable(random, size), iterations);
+	}
+}
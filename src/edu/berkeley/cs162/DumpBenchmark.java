@@ -0,0 +1,122 @@
+/**
+ * Time and heap taken by KVStore.dumpToFile as the store grows
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Fills transient stores of growing size and dumps each to a file,
+ * reporting the dump's time and how far the heap rose above what it held
+ * before the dump, sampled every millisecond. The rise includes garbage
+ * not yet collected, so it is bounded by the young generation rather than
+ * zero, but a streaming dump keeps it flat while the store and file grow.
+ * Run with a heap that fits the largest store.
+ */
+public class DumpBenchmark {
+
+	/**
+	 * Samples heap use every millisecond until stopped.
+	 */
+	private static class HeapSampler extends Thread {
+		private volatile boolean running = true;
+		private volatile long peak = 0;
+
+		HeapSampler() {
+			super("heap sampler");
+			setDaemon(true);
+		}
+
+		public void run() {
+			MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+			while (running) {
+				peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		long finish() throws InterruptedException {
+			running = false;
+			join();
+			return peak;
+		}
+	}
+
+	/**
+	 * @param args
+	 *            file [valueSize [keys...]]; each count of keys is dumped to
+	 *            file in turn
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: DumpBenchmark file [valueSize [keys...]]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int[] sizes = { 100000, 1000000 };
+		if (args.length > 2) {
+			sizes = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++)
+				sizes[i - 2] = Integer.parseInt(args[i]);
+		}
+		AutoGrader.setDelays(0, 0);
+		char[] chars = new char[valueSize];
+		for (int i = 0; i < valueSize; i++)
+			chars[i] = (char) ('a' + i % 26);
+		String value = new String(chars);
+
+		for (int size : sizes) {
+			KVStore store = new KVStore();
+			for (int i = 0; i < size; i++)
+				store.put("key" + i, value);
+			System.gc();
+			long before = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			HeapSampler sampler = new HeapSampler();
+			sampler.start();
+			long start = System.nanoTime();
+			store.dumpToFile(file.getPath());
+			long millis = (System.nanoTime() - start) / 1000000;
+			long rise = Math.max(0, sampler.finish() - before);
+			System.out.println(String.format("keys=%d fileMB=%.1f dumpMillis=%d MB/s=%.1f heapMB=%.1f peakRiseMB=%.1f",
+					size, file.length() / 1e6, millis, millis == 0 ? 0.0 : file.length() / 1e3 / millis,
+					before / 1e6, rise / 1e6));
+			store = null;
+			System.gc();
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Approximate access counts for the TinyLFU eviction policy of KVCache
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often each key hash
+ * has been seen lately. Every long holds sixteen counters; a hash counts in
+ * four of them, one per row, picked from four words and four nibbles, and
+ * its frequency is the smallest of the four. Once sampleSize increments
+ * have been recorded, every counter is halved, so old popularity fades.
+ *
+ * Increments use compare-and-set and may come from any thread. A reset
+ * racing an increment may let the increment land before or after the
+ * halving; either is fine for an estimate.
+ */
+class FrequencySketch {
+	static final int MAX_FREQUENCY = 15;
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private AtomicLongArray table = null;
+	private int tableMask = 0;
+	private int sampleSize = 0;
+	private AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param capacity number of entries whose frequencies should be told
+	 *            apart, usually the size of the cache
+	 */
+	FrequencySketch(int capacity) {
+		int length = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		table = new AtomicLongArray(length);
+		tableMask = length - 1;
+		sampleSize = 10 * Math.max(1, capacity);
+	}
+
+	/**
+	 * @return the estimated number of times hash was seen, at most
+	 *         MAX_FREQUENCY
+	 */
+	int frequency(int hash) {
+		int h = spread(hash);
+		int start = (h & 3) << 2;
+		int frequency = MAX_FREQUENCY;
+		for (int i = 0; i < 4; i++) {
+			long word = table.get(indexOf(h, i));
+			int count = (int) ((word >>> ((start + i) << 2)) & 0xf);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records one occurrence of hash.
+	 */
+	void increment(int hash) {
+		int h = spread(hash);
+		int start = (h & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++)
+			added |= incrementAt(indexOf(h, i), start + i);
+		if (added && size.incrementAndGet() == sampleSize)
+			reset();
+	}
+
+	private boolean incrementAt(int index, int counter) {
+		int shift = counter << 2;
+		long mask = 0xfL << shift;
+		for (;;) {
+			long word = table.get(index);
+			if ((word & mask) == mask)
+				return false;
+			if (table.compareAndSet(index, word, word + (1L << shift)))
+				return true;
+		}
+	}
+
+	/**
+	 * Halves every counter and the sample count.
+	 */
+	private void reset() {
+		for (int i = 0; i < table.length(); i++) {
+			for (;;) {
+				long word = table.get(i);
+				if (table.compareAndSet(i, word, (word >>> 1) & RESET_MASK))
+					break;
+			}
+		}
+		size.set(sampleSize / 2);
+	}
+
+	private int indexOf(int h, int row) {
+		long hash = (h + SEEDS[row]) * SEEDS[row];
+		hash += hash >>> 32;
+		return (int) hash & tableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
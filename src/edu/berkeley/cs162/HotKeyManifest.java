@@ -0,0 +1,167 @@
+/**
+ * Hot-key manifest used to warm the cache after a restart
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The keys resident in a cache at one point, saved so that a restarted
+ * server can load them back into its cache before traffic finds it cold.
+ *
+ * Layout: magic(8) count(4), then the keys sorted and front coded, each as
+ * sharedPrefixLength(2) suffixLength(2) suffix in UTF-8, all deflated, then
+ * a CRC(4) of the uncompressed key run. Keys resident in a cache tend to
+ * share prefixes, which front coding and deflate both take out.
+ *
+ * A manifest is written to a temporary file and renamed over the old one,
+ * so a crash while writing leaves the previous manifest in place.
+ */
+class HotKeyManifest {
+	private static final long MAGIC = 0x4b56484f544b5931L; // "KVHOTKY1"
+
+	/**
+	 * Replaces file with a manifest of keys.
+	 *
+	 * @throws IOException
+	 *             if a key is over 64 KB in UTF-8; the old manifest is kept
+	 */
+	static void write(File file, List<String> keys) throws IOException {
+		ArrayList<String> sorted = new ArrayList<String>(keys);
+		Collections.sort(sorted);
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmp);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		boolean written = false;
+		try {
+			DataOutputStream head = new DataOutputStream(stream);
+			head.writeLong(MAGIC);
+			head.writeInt(sorted.size());
+			DeflaterOutputStream deflated = new DeflaterOutputStream(stream, deflater);
+			CheckedOutputStream checked = new CheckedOutputStream(deflated, new CRC32());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 64 * 1024));
+			byte[] previous = new byte[0];
+			for (String key : sorted) {
+				byte[] bytes = key.getBytes(KVLog.UTF8);
+				if (bytes.length > 0xffff)
+					throw new IOException("Key too long for a hot-key manifest: " + bytes.length + " bytes");
+				int shared = 0;
+				int max = Math.min(previous.length, bytes.length);
+				while (shared < max && previous[shared] == bytes[shared])
+					shared++;
+				out.writeShort(shared);
+				out.writeShort(bytes.length - shared);
+				out.write(bytes, shared, bytes.length - shared);
+				previous = bytes;
+			}
+			out.flush();
+			deflated.finish();
+			head.writeInt((int) checked.getChecksum().getValue());
+			head.flush();
+			stream.getFD().sync();
+			written = true;
+		} finally {
+			deflater.end();
+			stream.close();
+			if (!written)
+				tmp.delete();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not replace " + file);
+		}
+	}
+
+	/**
+	 * @return the keys of the manifest in file, in key order
+	 * @throws IOException
+	 *             if the file is not a manifest or is corrupt
+	 */
+	static List<String> read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readLong() != MAGIC)
+				throw new IOException("Not a hot-key manifest: " + file);
+			int count = in.readInt();
+			if (count < 0)
+				throw new IOException("Corrupt hot-key manifest " + file);
+			byte[] rest = new byte[(int) Math.max(0, file.length() - 12)];
+			in.readFully(rest);
+			if (rest.length < 4)
+				throw new IOException("Truncated hot-key manifest " + file);
+			int crc = ((rest[rest.length - 4] & 0xff) << 24) | ((rest[rest.length - 3] & 0xff) << 16)
+					| ((rest[rest.length - 2] & 0xff) << 8) | (rest[rest.length - 1] & 0xff);
+			CheckedInputStream checked = new CheckedInputStream(new InflaterInputStream(
+					new ByteArrayInputStream(rest, 0, rest.length - 4)), new CRC32());
+			DataInputStream keys = new DataInputStream(new BufferedInputStream(checked));
+			ArrayList<String> result = new ArrayList<String>(Math.min(count, 1 << 20));
+			byte[] previous = new byte[0];
+			try {
+				for (int i = 0; i < count; i++) {
+					int shared = keys.readUnsignedShort();
+					int suffix = keys.readUnsignedShort();
+					if (shared > previous.length)
+						throw new IOException("Corrupt hot-key manifest " + file);
+					byte[] bytes = new byte[shared + suffix];
+					System.arraycopy(previous, 0, bytes, 0, shared);
+					keys.readFully(bytes, shared, suffix);
+					result.add(new String(bytes, KVLog.UTF8));
+					previous = bytes;
+				}
+			} catch (EOFException e) {
+				throw new IOException("Truncated hot-key manifest " + file);
+			}
+			if ((int) checked.getChecksum().getValue() != crc)
+				throw new IOException("Corrupt hot-key manifest " + file);
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -30,38 +30,177 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.HashMap;
-import java.lang.String;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+import java.lang.String;
 
 /**
- * A set-associate cache which has a fixed maximum number of sets (numSets).
+ * A set-associate cache with a number of sets (numSets) that can be changed
+ * while it is in use, see resize.
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET). If a set is
  * full and another entry is added, an entry is dropped based on the eviction
- * policy.
+ * policy chosen at construction, see {@link Policy}.
+ *
+ * The cache may also be given a byte budget, split evenly between the sets.
+ * An entry is charged for the characters of its key and value plus a fixed
+ * overhead, and entries are evicted from a set until a new one fits its
+ * share. An entry larger than a given fraction of a set's share is not
+ * cached at all.
+ *
+ * With negative caching on, each set also remembers a few keys the store
+ * was found not to have, for a short time, so that repeated reads of them
+ * can be answered without a store lookup; see setNegativeCaching.
+ *
+ * Entries live in the flat arrays of a {@link Table}, preallocated for all
+ * its sets; set s owns slots s * maxElemsPerSet up to (s + 1) *
+ * maxElemsPerSet. A slot is empty when its key is null. Key hashes are kept
+ * beside the keys so a probe only calls equals on a likely match, and
+ * nothing is allocated by get, put or del.
+ *
+ * The cache is locked in a fixed power-of-two number of stripes, and the
+ * set count is always rounded up to a multiple of it, so a key's stripe
+ * follows from its hash alone and every key of a set is under the same
+ * stripe in every table. Each stripe is a
+ * StampedLock. Writers hold it exclusively through the view returned by
+ * getWriteLock. Readers use read, which looks for the key without blocking
+ * and only keeps the answer if no writer entered the stripe meanwhile,
+ * falling back to the shared read lock after repeated conflicts. Readers
+ * set reference bits and other eviction bookkeeping without any lock; a
+ * hit recorded on a slot that was just overwritten, or lost to a racing
+ * reader, only makes one eviction a little less apt.
  */
 public class KVCache implements KeyValueInterface {
-	private int numSets = 100;
 	private int maxElemsPerSet = 10;
-	private HashMap<Integer, ArrayList<String[]>> setToElem;
-	private HashMap<Integer, WriteLock> locks; // true for lock available
+	private Policy policy = Policy.CLOCK;
+	private double admissionFraction = 1.0;
+	private long maxBytes = Long.MAX_VALUE;
+
+	// the table being served; while it is being resized, its next field
+	// points to the table its sets are moving to
+	private volatile Table table;
+
+	// most lock stripes; caches of fewer sets get the largest power of two
+	// not above their set count
+	static final int STRIPES = 64;
+
+	private int numStripes = 0;
+	private StampedLock[] locks;
+	private Lock[] writeLocks;
+
+	private AtomicLong usedBytes = new AtomicLong();
+	private AtomicLong entries = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private AtomicLong rejectedAdmissions = new AtomicLong();
+	private AtomicLong resizes = new AtomicLong();
+	private AtomicLong migratedSets = new AtomicLong();
+
+	// negative caching, see setNegativeCaching
+	private volatile int negativesPerSet = 0;
+	private volatile long negativeTtlNanos = 0;
+
+	// outcomes of read, which every reader updates
+	private LongAdder hits = new LongAdder();
+	private LongAdder negativeHits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+
+	// optimistic attempts a read makes before waiting for the read lock
+	private static final int OPTIMISTIC_READS = 2;
+
+	/**
+	 * Bytes an entry is charged beyond two per character of its key and
+	 * value: the two String objects and arrays, and its share of the slot
+	 * arrays.
+	 */
+	static final int ENTRY_OVERHEAD = 96;
+
+	/**
+	 * Largest share of a set's byte budget a single entry may take unless
+	 * told otherwise.
+	 */
+	public static final double DEFAULT_ADMISSION_FRACTION = 0.5;
+
+	/**
+	 * What read returns for a key known not to be in the store. Compare
+	 * with ==.
+	 */
+	public static final String ABSENT = new String("");
+
+	/**
+	 * Ways of choosing the entry to drop from a full set.
+	 */
+	public enum Policy {
+		/** second chance: a reference bit per entry and a clock hand per set */
+		CLOCK,
+		/** the entry read or written least recently */
+		LRU,
+		/** the entry read or written least often since it was cached */
+		LFU,
+		/**
+		 * W-TinyLFU: one window slot per set takes each new entry, and the
+		 * entry it displaces stays in the set only if a sketch of recent
+		 * traffic has seen its key more often than that of the set's least
+		 * recently used entry
+		 */
+		TINY_LFU
+	}
 
 	/**
-	 * Creates a new LRU cache.
+	 * Creates a new CLOCK cache.
 	 * 
-	 * @param cacheSize
-	 *            the maximum number of entries that will be kept in this cache.
+	 * @param numSets
+	 *            the number of sets
+	 * @param maxElemsPerSet
+	 *            the maximum number of entries kept in each set
 	 */
 	public KVCache(int numSets, int maxElemsPerSet) {
-		this.numSets = numSets;
+		this(numSets, maxElemsPerSet, Policy.CLOCK);
+	}
+
+	/**
+	 * Creates a new cache that evicts by policy.
+	 * 
+	 * @param numSets
+	 *            the number of sets
+	 * @param maxElemsPerSet
+	 *            the maximum number of entries kept in each set
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, Policy policy) {
+		this(numSets, maxElemsPerSet, policy, Long.MAX_VALUE, 1.0);
+	}
+
+	/**
+	 * Creates a new cache that evicts by policy and holds at most maxBytes
+	 * of entries, maxBytes / numSets in each set.
+	 * 
+	 * @param numSets
+	 *            the number of sets, rounded up to a multiple of the stripe
+	 *            count
+	 * @param maxElemsPerSet
+	 *            the maximum number of entries kept in each set
+	 * @param admissionFraction
+	 *            the largest fraction of a set's budget one entry may take,
+	 *            e.g. DEFAULT_ADMISSION_FRACTION; larger entries are not
+	 *            cached
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, Policy policy, long maxBytes, double admissionFraction) {
 		this.maxElemsPerSet = maxElemsPerSet;
-		setToElem = new HashMap<Integer, ArrayList<String[]>>();
-		locks = new HashMap<Integer, WriteLock>();
-		for (int i = 0; i < numSets; i++) {
-			setToElem.put(i, new ArrayList<String[]>()); // String[0]: key 	String[1]: value 	String[2]: use bit
-			locks.put(i, new ReentrantReadWriteLock().writeLock());
+		this.policy = policy;
+		this.maxBytes = maxBytes;
+		this.admissionFraction = admissionFraction;
+		if (numSets <= 0)
+			throw new IllegalArgumentException("Set count must be positive");
+		numStripes = Math.min(STRIPES, Integer.highestOneBit(numSets));
+		table = new Table(roundSets(numSets));
+		locks = new StampedLock[numStripes];
+		writeLocks = new Lock[numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			locks[i] = new StampedLock();
+			writeLocks[i] = locks[i].asWriteLock();
 		}
 	}
 
@@ -75,24 +214,142 @@ public class KVCache implements KeyValueInterface {
 	 *         key exists in the cache.
 	 */
 	public String get(String key) {
+		return get(key, true);
+	}
+
+	/**
+	 * get for a lookup whose access {@link #read} has already recorded, so
+	 * the eviction policy sees each lookup once. Assumes the corresponding
+	 * set has already been locked for writing.
+	 */
+	String recheck(String key) {
+		return get(key, false);
+	}
+
+	private String get(String key, boolean access) {
 		// Must be called before anything else
 		AutoGrader.agCacheGetStarted(key);
 		AutoGrader.agCacheGetDelay();
 
-		ArrayList<String[]> keyVal = setToElem.get(getSetId(key));
-		for (int i = 0; i < keyVal.size(); i++) {
-			if (keyVal.get(i)[0].equals(key)) {
-				keyVal.get(i)[2] = "1";
+		int hash = key.hashCode();
+		String value = locate(hash).probe(key, hash, access);
+
+		// Must be called before returning
+		AutoGrader.agCacheGetFinished(key);
+		return value;
+	}
+
+	/**
+	 * get without the AutoGrader hooks, for {@link CacheTraceReplay}.
+	 */
+	String probe(String key) {
+		int hash = key.hashCode();
+		return locate(hash).probe(key, hash, true);
+	}
+
+	/**
+	 * Retrieves an entry from the cache without locking its set for
+	 * writing, so readers of a set do not wait for each other. Must not be
+	 * called while holding the set's write lock.
+	 * 
+	 * @param key
+	 *            the key whose associated value is to be returned.
+	 * @return the value associated to this key, ABSENT if the key is known
+	 *         not to exist in the store, or null if nothing is known about
+	 *         the key.
+	 */
+	public String read(String key) {
+		// Must be called before anything else
+		AutoGrader.agCacheGetStarted(key);
+		AutoGrader.agCacheGetDelay();
 
-				// Must be called before returning
-				AutoGrader.agCacheGetFinished(key);
-				return keyVal.get(i)[1];
+		int hash = key.hashCode();
+		StampedLock lock = locks[getStripe(hash)];
+		Table first = table;
+		first.evictor.recordAccess(hash);
+		Table t = null;
+		String value = null;
+		int slot = -1;
+		boolean valid = false;
+		for (int i = 0; i < OPTIMISTIC_READS && !valid; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0)
+				continue;
+			// while a resize is under way the key may be in either table
+			t = first;
+			slot = t.find(key, hash, t.getSetId(hash) * maxElemsPerSet);
+			while (slot < 0 && t.next != null && !t.isAbsent(key, hash)) {
+				t = t.next;
+				slot = t.find(key, hash, t.getSetId(hash) * maxElemsPerSet);
 			}
+			value = slot >= 0 ? t.values[slot] : t.isAbsent(key, hash) ? ABSENT : null;
+			valid = lock.validate(stamp);
+		}
+		if (!valid) {
+			long stamp = lock.readLock();
+			try {
+				t = table;
+				slot = t.find(key, hash, t.getSetId(hash) * maxElemsPerSet);
+				while (slot < 0 && t.next != null && !t.isAbsent(key, hash)) {
+					t = t.next;
+					slot = t.find(key, hash, t.getSetId(hash) * maxElemsPerSet);
+				}
+				value = slot >= 0 ? t.values[slot] : t.isAbsent(key, hash) ? ABSENT : null;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		if (slot >= 0) {
+			if (t.referenced[slot] == 0)
+				t.referenced[slot] = 1;
+			t.evictor.recordHit(t.getSetId(hash), slot);
+			hits.increment();
+		} else if (value == ABSENT) {
+			negativeHits.increment();
+		} else {
+			misses.increment();
 		}
 
 		// Must be called before returning
 		AutoGrader.agCacheGetFinished(key);
-		return null;
+		return value;
+	}
+
+	/**
+	 * Records that the store does not have key, if negative caching is on.
+	 * The record lasts until the next put of the key or until its TTL runs
+	 * out, whichever comes first. Assumes the corresponding set has already
+	 * been locked for writing.
+	 */
+	public void putAbsent(String key) {
+		if (negativesPerSet == 0)
+			return;
+		int hash = key.hashCode();
+		locate(hash).putAbsent(key, hash);
+	}
+
+	/**
+	 * Turns negative caching on, or off with a perSet of 0. Entries already
+	 * recorded are forgotten.
+	 * 
+	 * @param perSet
+	 *            the most absent keys remembered per set; the oldest is
+	 *            forgotten to make room
+	 * @param ttlMillis
+	 *            how long an absent key is remembered
+	 */
+	public synchronized void setNegativeCaching(int perSet, long ttlMillis) {
+		negativeTtlNanos = ttlMillis * 1000000;
+		negativesPerSet = perSet;
+		for (Table t = table; t != null; t = t.next)
+			t.negatives = perSet > 0 ? new Negatives(t.numSets, perSet) : null;
+	}
+
+	/**
+	 * Same as get, which already answers a miss with null.
+	 */
+	public String lookup(String key) {
+		return get(key);
 	}
 
 	/**
@@ -112,51 +369,19 @@ public class KVCache implements KeyValueInterface {
 		AutoGrader.agCachePutStarted(key, value);
 		AutoGrader.agCachePutDelay();
 
-		ArrayList<String[]> keyVal = setToElem.get(getSetId(key));
-		// check whether element is already in set
-		for (int i = 0; i < keyVal.size(); i++) {
-			if (keyVal.get(i)[0].equals(key)) {
-				String[] changeThis = keyVal.get(i);
-				changeThis[1] = value;
-				changeThis[2] = "0"; // TODO: if put in a new one over an old
-										// one, reference bit is 0?
-				keyVal.remove(i);
-				keyVal.add(i, changeThis);
-				setToElem.put(getSetId(key), keyVal);
-				// Must be called before returning
-				AutoGrader.agCacheGetFinished(key);
-				return true;
-			}
-		}
-
-		String[] put = new String[3];
-		put[0] = key;
-		put[1] = value;
-		put[2] = "0";
-		keyVal.add(put);
-
-		if (keyVal.size() < maxElemsPerSet) {
-			// insert new key value pair
-			setToElem.put(getSetId(key), keyVal);
-			// Must be called before returning
-			AutoGrader.agCacheGetFinished(key);
-			return false;
-		}
+		boolean overwritten = insert(key, value);
 
-		String[] check = keyVal.get(0);
-		// overwrite value
-		while (check[3] != "0") {
-			check[3] = "0";
-			keyVal.remove(0);
-			keyVal.add(check);
-			check = keyVal.get(0);
-		}
-		keyVal.remove(0);
-		keyVal.add(put);
-		setToElem.put(getSetId(key), keyVal);
 		// Must be called before returning
 		AutoGrader.agCachePutFinished(key, value);
-		return true;
+		return overwritten;
+	}
+
+	/**
+	 * put without the AutoGrader hooks, for {@link CacheTraceReplay}.
+	 */
+	boolean insert(String key, String value) {
+		int hash = key.hashCode();
+		return locate(hash).insert(key, hash, value);
 	}
 
 	/**
@@ -168,64 +393,622 @@ public class KVCache implements KeyValueInterface {
 	 */
 	public void del(String key) {
 		// Must be called before anything else
-		AutoGrader.agCacheGetStarted(key);
+		AutoGrader.agCacheDelStarted(key);
 		AutoGrader.agCacheDelDelay();
 
-		ArrayList<String[]> keyVal = setToElem.get(getSetId(key));
-		for (int i = 0; i < keyVal.size(); i++) {
-			if (keyVal.get(i)[0].equals(key)) {
-				keyVal.remove(i);
-				break;
-			}
-		}
+		remove(key);
 
 		// Must be called before returning
 		AutoGrader.agCacheDelFinished(key);
 	}
 
+	/**
+	 * The cache holds an unordered subset of the store, so it cannot
+	 * answer a range; scans go to the store instead.
+	 * 
+	 * @throws KVException always
+	 */
+	public Iterator<String[]> scan(String start, String end, String prefix, int limit) throws KVException {
+		KVMessage kmsg = new KVMessage("resp", "Unknown Error: Cache does not support scans");
+		throw new KVException(kmsg);
+	}
+
+	/**
+	 * del without the AutoGrader hooks, for {@link CacheTraceReplay}.
+	 */
+	void remove(String key) {
+		int hash = key.hashCode();
+		locate(hash).remove(key, hash);
+	}
+
 	/**
 	 * @param key
-	 * @return the write lock of the set that contains key.
+	 * @return the write lock of the set that contains key. It is not
+	 *         reentrant.
 	 */
-	public WriteLock getWriteLock(String key) {
-		return locks.get(getSetId(key));
+	public Lock getWriteLock(String key) {
+		return writeLocks[getStripe(key.hashCode())];
 	}
 
 	/**
+	 * Starts changing the number of sets to numSets. Sets are moved to a new
+	 * table one at a time, each under its stripe lock: by the first get, put
+	 * or del of one of its keys, or else by a background thread. Until then
+	 * readers look in both tables. If the new table has less room, entries
+	 * are evicted from it by the policy as they arrive.
 	 * 
-	 * @param key
-	 * @return set of the key
+	 * @param numSets
+	 *            the new number of sets, larger or smaller than now, rounded
+	 *            up to a multiple of the stripe count
+	 * @return false if an earlier resize is still under way
+	 * @throws IllegalArgumentException
+	 *             if numSets is not positive
+	 */
+	public synchronized boolean resize(int numSets) {
+		if (numSets <= 0)
+			throw new IllegalArgumentException("Set count must be positive");
+		numSets = roundSets(numSets);
+		final Table from = table;
+		if (from.next != null)
+			return false;
+		if (numSets == from.numSets)
+			return true;
+		from.moved = new byte[from.numSets];
+		from.next = new Table(numSets);
+		Thread mover = new Thread("KVCache resize") {
+			public void run() {
+				for (int set = 0; set < from.numSets; set++) {
+					Lock lock = writeLocks[set % numStripes];
+					lock.lock();
+					try {
+						if (from.moved[set] == 0)
+							from.migrate(set);
+					} finally {
+						lock.unlock();
+					}
+				}
+				table = from.next;
+				resizes.incrementAndGet();
+			}
+		};
+		mover.setDaemon(true);
+		mover.start();
+		return true;
+	}
+
+	public boolean isResizing() {
+		return table.next != null;
+	}
+
+	/**
+	 * @return the keys in the cache, those referenced since the eviction
+	 *         policy last looked at them first; each set is read under its
+	 *         read lock, so the list is a snapshot of each set but not of
+	 *         the whole cache
+	 */
+	public List<String> residentKeys() {
+		ArrayList<String> hot = new ArrayList<String>();
+		ArrayList<String> cold = new ArrayList<String>();
+		for (Table t = table; t != null; t = t.next) {
+			for (int set = 0; set < t.numSets; set++) {
+				StampedLock lock = locks[set % numStripes];
+				long stamp = lock.readLock();
+				try {
+					for (int slot = set * maxElemsPerSet; slot < (set + 1) * maxElemsPerSet; slot++) {
+						if (t.keys[slot] != null)
+							(t.referenced[slot] != 0 ? hot : cold).add(t.keys[slot]);
+					}
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+		}
+		hot.addAll(cold);
+		return hot;
+	}
+
+	/**
+	 * @return bytes and entries cached, against the budget, how many
+	 *         entries were evicted or refused for their size, the progress
+	 *         of resizes, and how reads fared: hits, hits of keys known to be
+	 *         absent, and misses
+	 */
+	public String stats() {
+		Table t = table;
+		return String.format("usedBytes=%d maxBytes=%s entries=%d maxEntries=%d evictions=%d "
+				+ "rejectedAdmissions=%d numSets=%d resizing=%b resizes=%d migratedSets=%d hits=%d "
+				+ "negativeHits=%d misses=%d", usedBytes.get(), maxBytes == Long.MAX_VALUE ? "unbounded" : maxBytes,
+				entries.get(), t.keys.length, evictions.get(), rejectedAdmissions.get(), t.numSets, t.next != null,
+				resizes.get(), migratedSets.get(), hits.sum(), negativeHits.sum(), misses.sum());
+	}
+
+	/**
+	 * Finds the table holding key's set, first moving the set out of any
+	 * table being resized. Assumes key's stripe is locked for writing.
+	 */
+	private Table locate(int hash) {
+		Table t = table;
+		while (t.next != null) {
+			int set = t.getSetId(hash);
+			if (t.moved[set] == 0)
+				t.migrate(set);
+			t = t.next;
+		}
+		return t;
+	}
+
+	private int getStripe(int hash) {
+		return hash & (numStripes - 1);
+	}
+
+	/**
+	 * @return numSets rounded up to a multiple of the stripe count
+	 */
+	private int roundSets(int numSets) {
+		return (numSets + numStripes - 1) / numStripes * numStripes;
+	}
+
+	/**
+	 * @return bytes an entry is charged against the budget
+	 */
+	private static long sizeOf(String key, String value) {
+		return 2L * (key.length() + value.length()) + ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * Keys known to be absent from the store, perSet slots per set in flat
+	 * arrays like a Table's. A slot is empty when its key is null; one whose
+	 * deadline has passed is free to reuse. A full set replaces its slots in
+	 * turn.
+	 */
+	private static final class Negatives {
+		final int perSet;
+		final String[] keys;
+		final int[] hashes;
+		final long[] deadlines;
+		final int[] hands;
+
+		Negatives(int numSets, int perSet) {
+			this.perSet = perSet;
+			keys = new String[numSets * perSet];
+			hashes = new int[numSets * perSet];
+			deadlines = new long[numSets * perSet];
+			hands = new int[numSets];
+		}
+
+		/**
+		 * @return the slot holding key in set, live or expired, or -1
+		 */
+		int find(String key, int hash, int set) {
+			for (int slot = set * perSet; slot < (set + 1) * perSet; slot++) {
+				String k = keys[slot]; // read once, as read may race a writer
+				if (hashes[slot] == hash && k != null && k.equals(key))
+					return slot;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * The sets of the cache at one set count, with their eviction policy
+	 * and byte budget.
 	 */
-	private int getSetId(String key) {
-		return Math.abs(key.hashCode()) % numSets;
+	private final class Table {
+		final int numSets;
+		final String[] keys;
+		final String[] values;
+		final int[] hashes;
+		final byte[] referenced;
+		final Evictor evictor;
+
+		// byte budget, see put; setBytes is guarded by the stripe locks
+		final long setBudget;
+		final long maxEntryBytes;
+		final long[] setBytes;
+
+		// While this table is being resized, the table its sets move to and
+		// which of them have moved, guarded by the stripe locks
+		volatile Table next = null;
+		byte[] moved = null;
+
+		// null unless negative caching is on
+		volatile Negatives negatives = null;
+
+		Table(int numSets) {
+			this.numSets = numSets;
+			int slots = numSets * maxElemsPerSet;
+			keys = new String[slots];
+			values = new String[slots];
+			hashes = new int[slots];
+			referenced = new byte[slots];
+			setBytes = new long[numSets];
+			if (negativesPerSet > 0)
+				negatives = new Negatives(numSets, negativesPerSet);
+			if (maxBytes != Long.MAX_VALUE) {
+				setBudget = maxBytes / numSets;
+				maxEntryBytes = (long) (setBudget * Math.min(1.0, admissionFraction));
+			} else {
+				setBudget = Long.MAX_VALUE;
+				maxEntryBytes = Long.MAX_VALUE;
+			}
+			switch (policy) {
+			case LRU:
+				evictor = new LruEvictor();
+				break;
+			case LFU:
+				evictor = new LfuEvictor();
+				break;
+			case TINY_LFU:
+				evictor = new TinyLfuEvictor();
+				break;
+			default:
+				evictor = new ClockEvictor();
+			}
+		}
+
+		String probe(String key, int hash, boolean access) {
+			int set = getSetId(hash);
+			if (access)
+				evictor.recordAccess(hash);
+			int slot = find(key, hash, set * maxElemsPerSet);
+			if (slot < 0)
+				return null;
+			referenced[slot] = 1;
+			evictor.recordHit(set, slot);
+			return values[slot];
+		}
+
+		boolean insert(String key, int hash, String value) {
+			int set = getSetId(hash);
+			int base = set * maxElemsPerSet;
+			long size = sizeOf(key, value);
+			int slot = find(key, hash, base);
+			boolean fresh = slot < 0;
+			if (fresh)
+				forgetAbsent(key, hash, set);
+			if (size > maxEntryBytes) {
+				// not admitted; a cached older value would now be stale
+				rejectedAdmissions.incrementAndGet();
+				if (!fresh)
+					clear(set, slot);
+				return !fresh;
+			}
+			boolean overwritten = !fresh;
+			if (!fresh) {
+				// make room as if for a new entry, but keep the slot
+				setBytes[set] -= sizeOf(keys[slot], values[slot]);
+				usedBytes.addAndGet(-sizeOf(keys[slot], values[slot]));
+				values[slot] = null;
+			} else {
+				slot = free(base);
+			}
+			while (slot < 0 || setBytes[set] + size > setBudget) {
+				int victim = evictor.victim(set, base, fresh ? -1 : slot);
+				if (victim < 0)
+					break; // nothing left to evict but the entry being replaced
+				clear(set, victim);
+				evictions.incrementAndGet();
+				overwritten = true;
+				if (slot < 0)
+					slot = victim;
+			}
+			if (fresh) {
+				keys[slot] = key;
+				hashes[slot] = hash;
+				entries.incrementAndGet();
+			}
+			values[slot] = value;
+			setBytes[set] += size;
+			usedBytes.addAndGet(size);
+			referenced[slot] = 0; // TODO: if put in a new one over an old one, reference bit is 0?
+			evictor.recordWrite(set, slot, fresh);
+			return overwritten;
+		}
+
+		void remove(String key, int hash) {
+			int set = getSetId(hash);
+			int slot = find(key, hash, set * maxElemsPerSet);
+			if (slot >= 0)
+				clear(set, slot);
+		}
+
+		/**
+		 * @return whether key is recorded as absent and its TTL has not run
+		 *         out
+		 */
+		boolean isAbsent(String key, int hash) {
+			Negatives n = negatives;
+			if (n == null)
+				return false;
+			int slot = n.find(key, hash, getSetId(hash));
+			return slot >= 0 && n.deadlines[slot] - System.nanoTime() > 0;
+		}
+
+		void putAbsent(String key, int hash) {
+			Negatives n = negatives;
+			if (n == null)
+				return;
+			int set = getSetId(hash);
+			int slot = n.find(key, hash, set);
+			if (slot < 0) {
+				long now = System.nanoTime();
+				for (int s = set * n.perSet; s < (set + 1) * n.perSet && slot < 0; s++) {
+					if (n.keys[s] == null || n.deadlines[s] - now <= 0)
+						slot = s;
+				}
+				if (slot < 0) {
+					slot = set * n.perSet + n.hands[set];
+					n.hands[set] = (n.hands[set] + 1) % n.perSet;
+				}
+				n.keys[slot] = null; // so a racing reader cannot pair the key with an old deadline
+				n.deadlines[slot] = now + negativeTtlNanos;
+				n.hashes[slot] = hash;
+				n.keys[slot] = key;
+			} else {
+				n.deadlines[slot] = System.nanoTime() + negativeTtlNanos;
+			}
+		}
+
+		void forgetAbsent(String key, int hash, int set) {
+			Negatives n = negatives;
+			if (n == null)
+				return;
+			int slot = n.find(key, hash, set);
+			if (slot >= 0)
+				n.keys[slot] = null;
+		}
+
+		/**
+		 * Moves the entries of set to the next table. Assumes the set's
+		 * stripe is locked for writing.
+		 */
+		void migrate(int set) {
+			for (int slot = set * maxElemsPerSet; slot < (set + 1) * maxElemsPerSet; slot++) {
+				String key = keys[slot];
+				if (key == null)
+					continue;
+				int hash = hashes[slot];
+				String value = values[slot];
+				clear(set, slot);
+				next.insert(key, hash, value);
+			}
+			Negatives n = negatives;
+			if (n != null) {
+				// absent keys are not carried over, only forgotten
+				for (int slot = set * n.perSet; slot < (set + 1) * n.perSet; slot++)
+					n.keys[slot] = null;
+			}
+			moved[set] = 1;
+			migratedSets.incrementAndGet();
+		}
+
+		/**
+		 * Empties slot, which holds an entry of set.
+		 */
+		void clear(int set, int slot) {
+			long size = sizeOf(keys[slot], values[slot]);
+			setBytes[set] -= size;
+			usedBytes.addAndGet(-size);
+			entries.decrementAndGet();
+			keys[slot] = null;
+			values[slot] = null;
+			referenced[slot] = 0;
+		}
+
+		/**
+		 * 
+		 * @param hash
+		 *            the hashCode of a key
+		 * @return set of the key
+		 */
+		int getSetId(int hash) {
+			return (hash & 0x7fffffff) % numSets;
+		}
+
+		/**
+		 * @return the slot holding key in the set starting at base, or -1
+		 */
+		int find(String key, int hash, int base) {
+			for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+				String k = keys[slot]; // read once, as read may race a writer
+				if (hashes[slot] == hash && k != null && k.equals(key))
+					return slot;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return an empty slot in the set starting at base, or -1 if it is
+		 *         full
+		 */
+		int free(int base) {
+			for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+				if (keys[slot] == null)
+					return slot;
+			}
+			return -1;
+		}
+
+		/**
+		 * Bookkeeping and victim choice of one eviction policy. Slots and sets
+		 * are those of the enclosing table. recordAccess and recordHit may be
+		 * called by readers that do not hold the set's write lock; the other
+		 * methods are called by its holder.
+		 */
+		private abstract class Evictor {
+			/**
+			 * A key with this hash was looked up, whether or not it was cached.
+			 */
+			void recordAccess(int hash) {
+			}
+
+			/**
+			 * The entry in slot was read.
+			 */
+			void recordHit(int set, int slot) {
+			}
+
+			/**
+			 * slot now holds a new value, of a key that was not cached before if
+			 * fresh.
+			 */
+			abstract void recordWrite(int set, int slot, boolean fresh);
+
+			/**
+			 * @return the slot of an entry to drop to make room in set, other
+			 *         than exclude, or -1 if the set holds no other entry
+			 */
+			abstract int victim(int set, int base, int exclude);
+		}
+
+		/**
+		 * Second chance, over the reference bits the cache keeps for toXML.
+		 */
+		private class ClockEvictor extends Evictor {
+			private int[] hands = new int[numSets]; // per set, offset of the next slot the clock looks at
+
+			void recordWrite(int set, int slot, boolean fresh) {
+			}
+
+			/**
+			 * Advances the clock hand to the first entry that has not been
+			 * referenced since the hand last passed it, clearing the bits it
+			 * passes over. Two sweeps find one if there is any.
+			 */
+			int victim(int set, int base, int exclude) {
+				int hand = hands[set];
+				for (int i = 0; i < 2 * maxElemsPerSet; i++) {
+					int slot = base + hand;
+					hand = (hand + 1) % maxElemsPerSet;
+					if (keys[slot] == null || slot == exclude)
+						continue;
+					if (referenced[slot] != 0) {
+						referenced[slot] = 0;
+						continue;
+					}
+					hands[set] = hand;
+					return slot;
+				}
+				return -1;
+			}
+		}
+
+		/**
+		 * Stamps each slot with a per-set counter on every use. Readers bump the
+		 * counter without a lock, so two concurrent hits may get the same stamp.
+		 */
+		private class LruEvictor extends Evictor {
+			private long[] stamps = new long[keys.length];
+			private long[] ticks = new long[numSets];
+
+			void recordHit(int set, int slot) {
+				stamps[slot] = ++ticks[set];
+			}
+
+			void recordWrite(int set, int slot, boolean fresh) {
+				stamps[slot] = ++ticks[set];
+			}
+
+			int victim(int set, int base, int exclude) {
+				return oldest(base, exclude);
+			}
+
+			/**
+			 * @return the least recently used entry in the set starting at base,
+			 *         other than exclude, or -1
+			 */
+			int oldest(int base, int exclude) {
+				int oldest = -1;
+				for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+					if (keys[slot] != null && slot != exclude && (oldest < 0 || stamps[slot] < stamps[oldest]))
+						oldest = slot;
+				}
+				return oldest;
+			}
+		}
+
+		/**
+		 * Counts the uses of each entry since it was cached. Ties go to the
+		 * lowest slot.
+		 */
+		private class LfuEvictor extends Evictor {
+			private int[] counts = new int[keys.length];
+
+			void recordHit(int set, int slot) {
+				if (counts[slot] < Integer.MAX_VALUE)
+					counts[slot]++;
+			}
+
+			void recordWrite(int set, int slot, boolean fresh) {
+				if (fresh)
+					counts[slot] = 1;
+				else
+					recordHit(set, slot);
+			}
+
+			int victim(int set, int base, int exclude) {
+				int least = -1;
+				for (int slot = base; slot < base + maxElemsPerSet; slot++) {
+					if (keys[slot] != null && slot != exclude && (least < 0 || counts[slot] < counts[least]))
+						least = slot;
+				}
+				return least;
+			}
+		}
+
+		/**
+		 * LRU behind a TinyLFU admission filter. The slot each new key lands in
+		 * is its set's window. When the set needs room, the window's entry is
+		 * compared with the set's least recently used other entry by how often
+		 * the sketch has seen their keys, and the less frequent one is dropped;
+		 * a surviving window entry joins the rest of the set. A burst of one-off
+		 * keys thus mostly churns the window. Room for a larger value of a
+		 * cached key is made by plain LRU.
+		 */
+		private class TinyLfuEvictor extends LruEvictor {
+			private FrequencySketch sketch = new FrequencySketch(keys.length);
+			private int[] windows = new int[numSets]; // per set, offset of the window slot
+
+			void recordAccess(int hash) {
+				sketch.increment(hash);
+			}
+
+			void recordWrite(int set, int slot, boolean fresh) {
+				super.recordWrite(set, slot, fresh);
+				if (fresh)
+					windows[set] = slot - base(set);
+			}
+
+			int victim(int set, int base, int exclude) {
+				int window = base + windows[set];
+				if (exclude >= 0 || keys[window] == null)
+					return oldest(base, exclude);
+				int main = oldest(base, window);
+				if (main >= 0 && sketch.frequency(hashes[window]) > sketch.frequency(hashes[main]))
+					return main;
+				return window;
+			}
+
+			private int base(int set) {
+				return set * maxElemsPerSet;
+			}
+		}
 	}
 
 	public String toXML() {
-		String finalString = "";
-		String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>/n<KVCache>/n<Set ID=\"";
-		String setIDend = "\">/n";
-		String ref = "<CacheEntry isReferenced=\"";
-		String valid = " isValid=\"";
-		String validEnd = "\">/n<Key>";
-		String keyEnd = "</Key>/n<Value>";
-		String closing = "</Value>/n</CacheEntry>/n</Set>/n</KVCache>/n";
-		for (int i = 0; i < numSets; i++) {
-			ArrayList<String[]> keyVal = setToElem.get(i);
-			int j = 0;
-			for (; j < keyVal.size(); j++) {
-				finalString.concat(header + i + setIDend + ref
-						+ keyVal.get(j)[2] + valid + "true" + validEnd
-						+ keyVal.get(j)[0] + keyEnd + keyVal.get(j)[1]
-						+ closing);
-			}
-			while (j != maxElemsPerSet) {
-				finalString.concat(header + i + setIDend + ref
-						+ keyVal.get(j)[2] + valid + "false" + validEnd + 0
-						+ keyEnd + 0 + closing); // TODO: if not valid, what's the key/value?
-				j++;
-			}
-
-		}
-		return finalString;
+		Table t = table;
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<KVCache>\n");
+		for (int i = 0; i < t.numSets; i++) {
+			xml.append("<Set ID=\"").append(i).append("\">\n");
+			for (int slot = i * maxElemsPerSet; slot < (i + 1) * maxElemsPerSet; slot++) {
+				boolean valid = t.keys[slot] != null;
+				xml.append("<CacheEntry isReferenced=\"").append(t.referenced[slot] != 0 ? 1 : 0)
+						.append("\" isValid=\"").append(valid).append("\">\n<Key>")
+						.append(valid ? KVMessage.escape(t.keys[slot]) : "").append("</Key>\n<Value>")
+						.append(valid ? KVMessage.escape(t.values[slot]) : "").append("</Value>\n</CacheEntry>\n");
+			}
+			xml.append("</Set>\n");
+		}
+		return xml.append("</KVCache>\n").toString();
 	}
 }
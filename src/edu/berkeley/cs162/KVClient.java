@@ -32,9 +32,14 @@
 package edu.berkeley.cs162;
 
 import java.net.Socket;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.UnknownHostException;
 import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * This class is used to communicate with (appropriately marshalling and
@@ -50,6 +55,9 @@ public class KVClient implements KeyValueInterface {
 	private String server = null;
 	private int port = 0;
 	private Socket connection;
+	private boolean compression = false;
+	// set once the server has shown it reads deflated values
+	private volatile boolean serverCompresses = false;
 
 	/**
 	 * @param server
@@ -58,8 +66,32 @@ public class KVClient implements KeyValueInterface {
 	 *            is the port on which the Key-Value server is listening
 	 */
 	public KVClient(String server, int port) {
+		this(server, port, false);
+	}
+
+	/**
+	 * @param compression
+	 *            whether to offer the server deflated values, see
+	 *            {@link KVMessage#setAcceptsCompression}. Servers that do not
+	 *            know the compression attribute reject such requests.
+	 */
+	public KVClient(String server, int port, boolean compression) {
 		this.server = server;
 		this.port = port;
+		this.compression = compression;
+	}
+
+	/**
+	 * Marks msg as accepting deflated values if this client was asked to.
+	 */
+	private void negotiate(KVMessage msg) {
+		msg.setAcceptsCompression(compression);
+		msg.setCompressValue(compression && serverCompresses);
+	}
+
+	private void learn(KVMessage msgReturned) {
+		if (compression && msgReturned.acceptsCompression())
+			serverCompresses = true;
 	}
 
 	private Socket connectHost() throws KVException {
@@ -88,13 +120,24 @@ public class KVClient implements KeyValueInterface {
 	}
 
 	public boolean put(String key, String value) throws KVException {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * Puts a pair that the server deletes once ttlMillis have passed.
+	 * @param ttlMillis time to live, or 0 to keep the pair until deleted
+	 */
+	public boolean put(String key, String value, long ttlMillis) throws KVException {
 		Socket sock = connectHost();
 		KVMessage msg = new KVMessage("putreq");
 		msg.setKey(key);
 		msg.setValue(value);
+		msg.setTtl(ttlMillis);
+		negotiate(msg);
 		msg.sendMessage(sock);
 		try {
 			KVMessage msgReturned = new KVMessage(sock.getInputStream());
+			learn(msgReturned);
 			System.out.println("KVClient received message");
 			if (msgReturned.getMessage() != "Error Message") {
 				closeHost(sock);
@@ -113,9 +156,11 @@ public class KVClient implements KeyValueInterface {
 		Socket sock = connectHost();
 		KVMessage msg = new KVMessage("getreq");
 		msg.setKey(key);
+		negotiate(msg);
 		msg.sendMessage(sock);
 		try {
 			KVMessage msgReturned = new KVMessage(sock.getInputStream());
+			learn(msgReturned);
 			if (msgReturned.getMessage() != "Error Message") {
 				closeHost(sock);
 				return msgReturned.getValue();
@@ -127,13 +172,176 @@ public class KVClient implements KeyValueInterface {
 		return null;
 	}
 
+	/**
+	 * Like get, but only a missing key comes back as null; any other
+	 * failure is thrown.
+	 */
+	public String lookup(String key) throws KVException {
+		Socket sock = connectHost();
+		KVMessage msg = new KVMessage("getreq");
+		msg.setKey(key);
+		negotiate(msg);
+		msg.sendMessage(sock);
+		try {
+			KVMessage msgReturned = new KVMessage(sock.getInputStream());
+			learn(msgReturned);
+			if (msgReturned.getValue() != null)
+				return msgReturned.getValue();
+			if (KVMessage.NOT_FOUND.equals(msgReturned.getMessage()))
+				return null;
+			throw new KVException(msgReturned);
+		} catch (IOException e) {
+			KVMessage kmsg = new KVMessage("resp", "Network Error: Could not receive data");
+			throw new KVException(kmsg);
+		} finally {
+			closeHost(sock);
+		}
+	}
+
+	/**
+	 * Iterates over the pairs with keys from start up to end, in key order.
+	 * Pairs are fetched a page of up to KVMessage.SCAN_PAGE_PAIRS at a time,
+	 * each page with its own scanreq that resumes at the key the server
+	 * named as the next one. A page is read in full before its pairs are
+	 * returned.
+	 * @param start first key, or null to start at the beginning
+	 * @param end key to stop before, or null for no upper bound
+	 * @param prefix only keys starting with this, or null for all
+	 * @return an iterator of {key, value} pairs. It throws
+	 *         IllegalStateException if the server fails or the connection
+	 *         drops; the KVException with the details is its cause.
+	 */
+	public Iterator<String[]> scan(String start, String end, String prefix) {
+		return new ScanIterator(start, end, prefix, 0);
+	}
+
+	/**
+	 * Same as {@link #scan(String, String, String)}, stopping after limit
+	 * pairs.
+	 * @param limit most pairs to return, or 0 for no limit
+	 */
+	public Iterator<String[]> scan(String start, String end, String prefix, int limit) {
+		return new ScanIterator(start, end, prefix, Math.max(0, limit));
+	}
+
+	private class ScanIterator implements Iterator<String[]> {
+		private String start = null;
+		private String end = null;
+		private String prefix = null;
+		private int limit = 0;
+		private int returned = 0;
+		// pairs of the current page not yet returned
+		private ArrayDeque<String[]> page = new ArrayDeque<String[]>();
+		private boolean lastPage = false;
+		private String[] next = null;
+		private boolean done = false;
+
+		ScanIterator(String start, String end, String prefix, int limit) {
+			this.start = start;
+			this.end = end;
+			this.prefix = prefix;
+			this.limit = limit;
+		}
+
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					next = advance();
+				} catch (KVException e) {
+					done = true;
+					throw new IllegalStateException("Scan failed", e);
+				}
+			}
+			return next != null;
+		}
+
+		public String[] next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			String[] pair = next;
+			next = null;
+			return pair;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private String[] advance() throws KVException {
+			while (page.isEmpty()) {
+				if (lastPage || (limit > 0 && returned == limit)) {
+					done = true;
+					return null;
+				}
+				fetchPage();
+			}
+			returned++;
+			return page.poll();
+		}
+
+		/**
+		 * Reads a whole page and closes its connection before any of it is
+		 * returned, so the server is never kept waiting on the caller.
+		 */
+		private void fetchPage() throws KVException {
+			Socket sock = connectHost();
+			KVMessage msg = new KVMessage("scanreq");
+			msg.setKey(start);
+			msg.setEndKey(end);
+			msg.setPrefix(prefix);
+			msg.setLimit(limit > 0 ? Math.min(KVMessage.SCAN_PAGE_PAIRS, limit - returned)
+						: KVMessage.SCAN_PAGE_PAIRS);
+			msg.sendMessage(sock);
+			String resume = null;
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), KVLog.UTF8));
+				if (!KVMessage.XML_HEADER.equals(in.readLine())
+						|| !KVMessage.SCAN_RESPONSE_START.equals(in.readLine())) {
+					KVMessage kmsg = new KVMessage("resp", "XML Error: Received unparseable message");
+					throw new KVException(kmsg);
+				}
+				for (;;) {
+					String line = in.readLine();
+					if (line == null) {
+						KVMessage kmsg = new KVMessage("resp", "Network Error: Could not receive data");
+						throw new KVException(kmsg);
+					}
+					String[] pair = KVMessage.parseScanPair(line);
+					if (pair != null) {
+						page.add(pair);
+						continue;
+					}
+					String key = KVMessage.parseScanContinue(line);
+					if (key != null) {
+						resume = key;
+						continue;
+					}
+					if (!line.equals(KVMessage.SCAN_RESPONSE_END)) {
+						KVMessage kmsg = new KVMessage("resp", "Unknown Error: Scan failed on the server");
+						throw new KVException(kmsg);
+					}
+					break;
+				}
+			} catch (IOException e) {
+				KVMessage kmsg = new KVMessage("resp", "Network Error: Could not receive data");
+				throw new KVException(kmsg);
+			} finally {
+				closeHost(sock);
+			}
+			lastPage = resume == null;
+			start = resume;
+		}
+	}
+
 	public void del(String key) throws KVException {
 		Socket sock = connectHost();
 		KVMessage msg = new KVMessage("delreq");
 		msg.setKey(key);
+		negotiate(msg);
 		msg.sendMessage(sock);
 		try {
 			KVMessage msgReturned = new KVMessage(sock.getInputStream());
+			learn(msgReturned);
 			if (msgReturned.getMessage() != "Error Message")
 				closeHost(sock);
 				return;
@@ -68,14 +68,28 @@ public class KVClientHandler implements NetworkHandler {
 		public void run() {
 			try {
 				KVMessage msg = new KVMessage(client.getInputStream());
+				if (msg.getMsgType().equals("scanreq")) {
+					// one pair past the page tells whether the scan goes on
+					int pageSize = KVMessage.scanPageSize(msg.getLimit());
+					KVMessage.sendScanResponse(client, kvServer.scan(msg.getKey(), msg.getEndKey(),
+							msg.getPrefix(), pageSize + 1), pageSize);
+					return;
+				}
 				KVMessage response = new KVMessage("resp");
+				response.setAcceptsCompression(msg.acceptsCompression());
+				response.setCompressValue(msg.acceptsCompression());
 				if (msg.getMsgType().equals("getreq")) {
-					response.setValue(kvServer.get(msg.getKey()));
-					response.setKey(msg.getKey());
-					response.setMessage("Success");
+					String value = kvServer.lookup(msg.getKey());
+					if (value != null) {
+						response.setValue(value);
+						response.setKey(msg.getKey());
+						response.setMessage("Success");
+					} else {
+						response.setMessage(KVMessage.NOT_FOUND);
+					}
 				}
 				else if (msg.getMsgType().equals("putreq")) {
-					response.setStatus("" + kvServer.put(msg.getKey(), msg.getValue()));
+					response.setStatus("" + kvServer.put(msg.getKey(), msg.getValue(), msg.getTtl()));
 					response.setMessage("Success");
 				} else {
 					kvServer.del(msg.getKey());
@@ -87,6 +101,12 @@ public class KVClientHandler implements NetworkHandler {
 				System.out.println("IOException in running KVClientHandler");
 			} catch (KVException e) {
 				System.out.println("KVException in running KVClientHandler");
+				// answer anyway, so a failure is not mistaken for a missing key
+				try {
+					new KVMessage("resp", "Error Message").sendMessage(client);
+				} catch (KVException e2) {
+					// the connection is gone
+				}
 			}
 		}
 	}
@@ -0,0 +1,706 @@
+/**
+ * Append-only segmented log for the persistent key-value store
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of put and delete records, split across numbered
+ * segment files in one directory. An in-memory index maps every live key to
+ * the segment and offset of its latest value, so a put is one sequential
+ * append and a get is one positioned read.
+ *
+ * Record layout: crc(4) type(1) keyLength(4) valueLength(4) key value, where
+ * the CRC32 covers everything after the crc field. Values of at least
+ * compressionThreshold bytes are written as PUT_DEFLATED records holding
+ * the {@link ValueCodec} form, if that saves space. On open the index is
+ * rebuilt by scanning every segment in order. A torn or corrupt record at
+ * the tail of the newest segment is what a crash mid-append leaves behind,
+ * so it is truncated away; the same damage in an older segment is an error.
+ *
+ * Writes are group committed: put and del queue their record and block
+ * while a single committer thread drains the queue into a batch of at most
+ * maxBatchSize records, waiting up to maxBatchWaitMicros for the batch to
+ * fill, appends the whole batch, fsyncs once, applies it to the index and
+ * releases every writer in it together.
+ */
+public class KVLog {
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	public static final long DEFAULT_MAX_BATCH_WAIT_MICROS = 0;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final byte PUT = 1;
+	static final byte DEL = 2;
+	static final byte PUT_DEFLATED = 3;
+	static final int HEADER_SIZE = 13;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private File dir = null;
+	private long maxSegmentSize = DEFAULT_SEGMENT_SIZE;
+	private CopyOnWriteArrayList<FileChannel> segments = null; // index is the segment id
+	private ConcurrentHashMap<String, Location> index = null;
+	private FileChannel active = null;
+	private long activeSize = 0;
+	private int compressionThreshold = ValueCodec.DEFAULT_THRESHOLD;
+
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private long maxBatchWaitNanos = 0;
+	private LinkedBlockingQueue<PendingWrite> queue = null;
+	private Thread committer = null;
+	private volatile boolean closed = false;
+	private volatile IOException failure = null; // set once the log cannot be cut back after a failed batch
+
+	// group commit statistics, guarded by this
+	private long batches = 0;
+	private long batchedWrites = 0;
+	private int largestBatch = 0;
+	private long commitNanos = 0;
+	private long maxCommitNanos = 0;
+	private long waitNanos = 0;
+	private long maxWaitNanos = 0;
+	private long[] batchSizeHistogram = new long[16]; // bucket i: sizes in [2^i, 2^(i+1))
+
+	// value compression statistics
+	private AtomicLong compressedValues = new AtomicLong();
+	private AtomicLong uncompressedBytes = new AtomicLong();
+	private AtomicLong compressedBytes = new AtomicLong();
+
+	/**
+	 * Where the latest value of a key lives on disk.
+	 */
+	private static class Location {
+		final int segment;
+		final long offset;
+		final int length;
+		final boolean deflated;
+
+		Location(int segment, long offset, int length, boolean deflated) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.deflated = deflated;
+		}
+	}
+
+	/**
+	 * A record waiting in the queue for the committer.
+	 */
+	private static class PendingWrite {
+		final String key;
+		final byte type;
+		final ByteBuffer record;
+		final int valueOffset;
+		final int valueLength;
+		final long enqueued = System.nanoTime();
+		final CountDownLatch done = new CountDownLatch(1);
+		boolean overwrote = false;
+		IOException error = null;
+
+		PendingWrite(String key, byte type, byte[] k, byte[] v) {
+			this.key = key;
+			this.type = type;
+			this.record = encode(type, k, v);
+			this.valueOffset = HEADER_SIZE + k.length;
+			this.valueLength = v.length;
+		}
+	}
+
+	private static final PendingWrite SHUTDOWN = new PendingWrite("", DEL, new byte[0], new byte[0]);
+
+	public KVLog(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public KVLog(File dir, long maxSegmentSize) throws IOException {
+		this(dir, maxSegmentSize, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_WAIT_MICROS);
+	}
+
+	/**
+	 * Opens (creating if needed) the log in dir and recovers its index.
+	 *
+	 * @param dir
+	 *            directory holding the segment files
+	 * @param maxSegmentSize
+	 *            size in bytes after which a new segment is started
+	 * @param maxBatchSize
+	 *            most records made durable by a single fsync
+	 * @param maxBatchWaitMicros
+	 *            how long the committer may hold a partial batch open for
+	 *            more writers; 0 commits whatever is queued immediately
+	 * @throws IOException
+	 *             if the directory cannot be used or an old segment is corrupt
+	 */
+	public KVLog(File dir, long maxSegmentSize, int maxBatchSize, long maxBatchWaitMicros) throws IOException {
+		this(dir, maxSegmentSize, maxBatchSize, maxBatchWaitMicros, ValueCodec.DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Opens the log in dir like the four argument constructor, compressing
+	 * values of at least compressionThreshold bytes; 0 turns compression
+	 * off. Logs written either way can be read either way.
+	 */
+	public KVLog(File dir, long maxSegmentSize, int maxBatchSize, long maxBatchWaitMicros,
+			int compressionThreshold) throws IOException {
+		this.dir = dir;
+		this.compressionThreshold = compressionThreshold;
+		this.maxSegmentSize = maxSegmentSize;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.maxBatchWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxBatchWaitMicros);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create log directory " + dir);
+		segments = new CopyOnWriteArrayList<FileChannel>();
+		index = new ConcurrentHashMap<String, Location>();
+		recover();
+
+		queue = new LinkedBlockingQueue<PendingWrite>();
+		committer = new Thread("KVLog committer " + dir.getName()) {
+			public void run() {
+				commitLoop();
+			}
+		};
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * @return the value of key, or null if it is absent
+	 */
+	public String get(String key) throws IOException {
+		Location loc = index.get(key);
+		if (loc == null)
+			return null;
+		ByteBuffer buf = ByteBuffer.allocate(loc.length);
+		readFully(segments.get(loc.segment), buf, loc.offset);
+		if (loc.deflated)
+			return new String(ValueCodec.inflate(buf.array(), 0, loc.length, Integer.MAX_VALUE), UTF8);
+		return new String(buf.array(), UTF8);
+	}
+
+	public boolean containsKey(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * Durably appends a put record and points the index at it. Blocks until
+	 * the group commit containing the record has been fsynced.
+	 *
+	 * @return true if an older value was overwritten
+	 */
+	public boolean put(String key, String value) throws IOException {
+		return submit(newPut(key, value));
+	}
+
+	/**
+	 * Durably appends a delete record (tombstone) for key. Blocks until the
+	 * group commit containing the record has been fsynced.
+	 *
+	 * @return true if the key was present
+	 */
+	public boolean del(String key) throws IOException {
+		if (!index.containsKey(key))
+			return false;
+		return submit(new PendingWrite(key, DEL, key.getBytes(UTF8), new byte[0]));
+	}
+
+	public Enumeration<String> keys() {
+		return index.keys();
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Commits every write queued so far, stops the committer and closes
+	 * the segments. Writes submitted afterwards fail.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		queue.add(SHUTDOWN);
+		boolean interrupted = false;
+		while (committer.isAlive()) {
+			try {
+				committer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (active != null)
+			active.force(false);
+		for (FileChannel segment : segments)
+			segment.close();
+		segments.clear();
+		index.clear();
+		active = null;
+	}
+
+	/**
+	 * @return number of group commits (fsyncs) performed so far
+	 */
+	public synchronized long getBatchCount() {
+		return batches;
+	}
+
+	public synchronized double getAverageBatchSize() {
+		return batches == 0 ? 0 : (double) batchedWrites / batches;
+	}
+
+	public synchronized int getLargestBatchSize() {
+		return largestBatch;
+	}
+
+	/**
+	 * @return mean time, in microseconds, to append and fsync one batch
+	 */
+	public synchronized double getAverageCommitMicros() {
+		return batches == 0 ? 0 : commitNanos / 1000.0 / batches;
+	}
+
+	public synchronized long getMaxCommitMicros() {
+		return maxCommitNanos / 1000;
+	}
+
+	/**
+	 * @return mean time, in microseconds, a writer spent between queueing
+	 *         its record and being released
+	 */
+	public synchronized double getAverageWriteWaitMicros() {
+		return batchedWrites == 0 ? 0 : waitNanos / 1000.0 / batchedWrites;
+	}
+
+	public synchronized long getMaxWriteWaitMicros() {
+		return maxWaitNanos / 1000;
+	}
+
+	/**
+	 * @return counts of committed batches whose size fell in [2^i, 2^(i+1))
+	 */
+	public synchronized long[] getBatchSizeHistogram() {
+		return batchSizeHistogram.clone();
+	}
+
+	/**
+	 * @return a one-line summary of the group commit statistics
+	 */
+	public synchronized String commitStats() {
+		StringBuilder histogram = new StringBuilder();
+		for (int i = 0; i < batchSizeHistogram.length; i++) {
+			if (batchSizeHistogram[i] > 0)
+				histogram.append(" ").append(1 << i).append("+:").append(batchSizeHistogram[i]);
+		}
+		return String.format("batches=%d writes=%d avgBatch=%.1f maxBatch=%d avgCommitUs=%.0f maxCommitUs=%d"
+				+ " avgWaitUs=%.0f maxWaitUs=%d sizes=[%s]", batches, batchedWrites, getAverageBatchSize(),
+				largestBatch, getAverageCommitMicros(), getMaxCommitMicros(), getAverageWriteWaitMicros(),
+				getMaxWriteWaitMicros(), histogram.toString().trim());
+	}
+
+	/**
+	 * Durably appends a put record for every {key, value} pair in entries,
+	 * letting the committer pack them into as few fsyncs as the batch size
+	 * allows. Used for bulk loads.
+	 */
+	public void putAll(List<String[]> entries) throws IOException {
+		ArrayList<PendingWrite> writes = new ArrayList<PendingWrite>(entries.size());
+		for (String[] entry : entries)
+			writes.add(newPut(entry[0], entry[1]));
+		checkWritable();
+		queue.addAll(writes);
+		for (PendingWrite write : writes)
+			await(write);
+	}
+
+	/**
+	 * Encodes a put record, compressed if the value is big enough and
+	 * compresses well.
+	 */
+	private PendingWrite newPut(String key, String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		if (compressionThreshold > 0 && bytes.length >= compressionThreshold) {
+			byte[] deflated = ValueCodec.deflate(bytes);
+			if (deflated != null) {
+				compressedValues.incrementAndGet();
+				uncompressedBytes.addAndGet(bytes.length);
+				compressedBytes.addAndGet(deflated.length);
+				return new PendingWrite(key, PUT_DEFLATED, key.getBytes(UTF8), deflated);
+			}
+		}
+		return new PendingWrite(key, PUT, key.getBytes(UTF8), bytes);
+	}
+
+	/**
+	 * @return how many values were compressed since the log was opened and
+	 *         their total size before and after
+	 */
+	public String compressionStats() {
+		long before = uncompressedBytes.get();
+		long after = compressedBytes.get();
+		return String.format("compressedValues=%d bytesBefore=%d bytesAfter=%d ratio=%.2f",
+				compressedValues.get(), before, after, after == 0 ? 0 : (double) before / after);
+	}
+
+	private void checkWritable() throws IOException {
+		if (closed)
+			throw new IOException("Log is closed");
+		if (failure != null)
+			throw failure;
+	}
+
+	private boolean submit(PendingWrite write) throws IOException {
+		checkWritable();
+		queue.add(write);
+		return await(write);
+	}
+
+	private boolean await(PendingWrite write) throws IOException {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				write.done.await();
+				break;
+			} catch (InterruptedException e) {
+				// the record may already be on disk, so keep waiting for it
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (write.error != null)
+			throw write.error;
+		return write.overwrote;
+	}
+
+	/**
+	 * Body of the committer thread: gathers queued writes into batches and
+	 * commits them until close() is called.
+	 */
+	private void commitLoop() {
+		ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>(maxBatchSize);
+		boolean running = true;
+		while (running) {
+			try {
+				PendingWrite next = queue.take();
+				long deadline = System.nanoTime() + maxBatchWaitNanos;
+				while (next != null) {
+					if (next == SHUTDOWN) {
+						running = false;
+						break;
+					}
+					batch.add(next);
+					if (batch.size() >= maxBatchSize)
+						break;
+					next = queue.poll();
+					if (next == null) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining > 0)
+							next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					}
+				}
+			} catch (InterruptedException e) {
+				// only close() stops the committer
+			}
+			if (!batch.isEmpty())
+				commit(batch);
+			batch.clear();
+		}
+		IOException error = new IOException("Log is closed");
+		for (PendingWrite write = queue.poll(); write != null; write = queue.poll()) {
+			write.error = error;
+			write.done.countDown();
+		}
+	}
+
+	/**
+	 * Appends a batch, fsyncs once, applies it to the index in queue order
+	 * and releases its writers. If the batch fails, the log is cut back to
+	 * where the batch started before its writers are failed.
+	 */
+	private void commit(ArrayList<PendingWrite> batch) {
+		long start = System.nanoTime();
+		Location[] locations = new Location[batch.size()];
+		IOException error = failure;
+		int startSegment = segments.size() - 1;
+		long startSize = activeSize;
+		try {
+			if (error != null)
+				throw error;
+			for (int i = 0; i < batch.size(); i++) {
+				PendingWrite write = batch.get(i);
+				long offset = append(write.record);
+				locations[i] = new Location(segments.size() - 1, offset + write.valueOffset, write.valueLength,
+						write.type == PUT_DEFLATED);
+			}
+			active.force(false);
+		} catch (IOException e) {
+			error = e;
+			if (failure == null)
+				rollBack(startSegment, startSize, e);
+		}
+		long end = System.nanoTime();
+		long batchWait = 0;
+		long batchMaxWait = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			PendingWrite write = batch.get(i);
+			if (error != null)
+				write.error = error;
+			else if (write.type != DEL)
+				write.overwrote = index.put(write.key, locations[i]) != null;
+			else
+				write.overwrote = index.remove(write.key) != null;
+			long wait = end - write.enqueued;
+			batchWait += wait;
+			batchMaxWait = Math.max(batchMaxWait, wait);
+		}
+		synchronized (this) {
+			batches++;
+			batchedWrites += batch.size();
+			largestBatch = Math.max(largestBatch, batch.size());
+			commitNanos += end - start;
+			maxCommitNanos = Math.max(maxCommitNanos, end - start);
+			waitNanos += batchWait;
+			maxWaitNanos = Math.max(maxWaitNanos, batchMaxWait);
+			int bucket = 31 - Integer.numberOfLeadingZeros(batch.size());
+			batchSizeHistogram[Math.min(bucket, batchSizeHistogram.length - 1)]++;
+		}
+		for (PendingWrite write : batch)
+			write.done.countDown();
+	}
+
+	/**
+	 * Writes one record at the end of the active segment without syncing.
+	 * Only called from the committer thread.
+	 *
+	 * @return offset of the record within the active segment
+	 */
+	private long append(ByteBuffer record) throws IOException {
+		if (activeSize > 0 && activeSize + record.remaining() > maxSegmentSize)
+			roll();
+		long offset = activeSize;
+		while (record.hasRemaining())
+			activeSize += active.write(record, activeSize);
+		return offset;
+	}
+
+	/**
+	 * Removes everything a failed batch appended: the segments it rolled
+	 * over to, and the tail of the segment it started in, including any
+	 * partly written record. Otherwise recovery would replay writes that
+	 * were reported as failed, and the next batch would land behind a torn
+	 * record that recovery stops at. If the log cannot be cut back, every
+	 * later write fails.
+	 */
+	private void rollBack(int segment, long size, IOException cause) {
+		try {
+			while (segments.size() - 1 > segment) {
+				int id = segments.size() - 1;
+				segments.remove(id).close();
+				File file = new File(dir, segmentName(id));
+				if (!file.delete())
+					throw new IOException("Could not delete " + file);
+			}
+			active = segments.get(segment);
+			active.truncate(size);
+			active.force(false);
+			activeSize = size;
+		} catch (IOException e) {
+			failure = new IOException("Log is closed to writes after a failed batch: " + cause.getMessage());
+		}
+	}
+
+	private void roll() throws IOException {
+		if (active != null)
+			active.force(false);
+		File file = new File(dir, segmentName(segments.size()));
+		active = new RandomAccessFile(file, "rw").getChannel();
+		segments.add(active);
+		activeSize = 0;
+	}
+
+	static ByteBuffer encode(byte type, byte[] key, byte[] value) {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+		buf.putInt(0);
+		buf.put(type);
+		buf.putInt(key.length);
+		buf.putInt(value.length);
+		buf.put(key);
+		buf.put(value);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 4, buf.capacity() - 4);
+		buf.putInt(0, (int) crc.getValue());
+		buf.flip();
+		return buf;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position + buf.position());
+			if (n < 0)
+				throw new EOFException("Short read in log segment");
+		}
+	}
+
+	private static String segmentName(int id) {
+		return SEGMENT_PREFIX + String.format("%06d", id) + SEGMENT_SUFFIX;
+	}
+
+	/**
+	 * Replays every segment in id order to rebuild the index.
+	 */
+	private void recover() throws IOException {
+		String[] names = dir.list();
+		ArrayList<String> found = new ArrayList<String>();
+		for (String name : names) {
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+				found.add(name);
+		}
+		Collections.sort(found);
+		for (int id = 0; id < found.size(); id++) {
+			if (!found.get(id).equals(segmentName(id)))
+				throw new IOException("Missing log segment " + segmentName(id));
+			File file = new File(dir, found.get(id));
+			FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+			segments.add(channel);
+			long end = replay(id, channel);
+			boolean last = id == found.size() - 1;
+			if (end != channel.size()) {
+				if (!last)
+					throw new IOException("Corrupt log segment " + file);
+				channel.truncate(end);
+				channel.force(false);
+			}
+			if (last) {
+				active = channel;
+				activeSize = end;
+			}
+		}
+		if (active == null)
+			roll();
+	}
+
+	/**
+	 * A record read back from a log file.
+	 */
+	static class Record {
+		final byte type;
+		final String key;
+		final byte[] value;
+		final int keyLength;
+
+		Record(byte type, String key, int keyLength, byte[] value) {
+			this.type = type;
+			this.key = key;
+			this.keyLength = keyLength;
+			this.value = value;
+		}
+
+		int size() {
+			return HEADER_SIZE + keyLength + value.length;
+		}
+	}
+
+	/**
+	 * Reads the next record from in, which has remaining bytes left in its
+	 * file.
+	 *
+	 * @return the record, or null if what follows is a torn or corrupt tail
+	 */
+	static Record readRecord(DataInputStream in, long remaining) throws IOException {
+		if (remaining < HEADER_SIZE)
+			return null;
+		byte[] header = new byte[HEADER_SIZE - 4];
+		int expected = in.readInt();
+		in.readFully(header);
+		ByteBuffer hb = ByteBuffer.wrap(header);
+		byte type = hb.get();
+		int keyLength = hb.getInt();
+		int valueLength = hb.getInt();
+		if ((type != PUT && type != DEL && type != PUT_DEFLATED) || keyLength < 0 || valueLength < 0
+				|| HEADER_SIZE + (long) keyLength + valueLength > remaining)
+			return null;
+		byte[] body = new byte[keyLength + valueLength];
+		in.readFully(body);
+		CRC32 crc = new CRC32();
+		crc.update(header);
+		crc.update(body);
+		if ((int) crc.getValue() != expected)
+			return null;
+		return new Record(type, new String(body, 0, keyLength, UTF8), keyLength, Arrays.copyOfRange(body, keyLength, body.length));
+	}
+
+	/**
+	 * @return offset just past the last intact record of the segment
+	 */
+	private long replay(int id, FileChannel channel) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel.position(0)), 64 * 1024));
+		long size = channel.size();
+		long pos = 0;
+		Record record;
+		while ((record = readRecord(in, size - pos)) != null) {
+			if (record.type != DEL)
+				index.put(record.key, new Location(id, pos + HEADER_SIZE + record.keyLength, record.value.length,
+						record.type == PUT_DEFLATED));
+			else
+				index.remove(record.key);
+			pos += record.size();
+		}
+		return pos;
+	}
+}
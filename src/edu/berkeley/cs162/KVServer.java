@@ -30,7 +30,17 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class defines the slave key value servers. Each individual KVServer
@@ -41,12 +51,135 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
  * 
  */
 public class KVServer implements KeyValueInterface {
-	private KVStore dataStore = null;
+	private KeyValueInterface dataStore = null;
 	private KVCache dataCache = null;
 
 	private static final int MAX_KEY_SIZE = 256;
 	private static final int MAX_VAL_SIZE = 256 * 1024;
 
+	// Keys put with a TTL, each with its pending expiry. The wheel and its
+	// thread are started by the first such put.
+	static final long TICK_MILLIS = 10;
+	private ConcurrentHashMap<String, Expiry> expiries = new ConcurrentHashMap<String, Expiry>();
+	private volatile TimingWheel wheel = null;
+	private AtomicLong expired = new AtomicLong();
+
+	// Writes, loads and expiries of a key hold its key lock, which orders
+	// them without keeping the key's cache set locked through store I/O;
+	// the set lock is only taken around the cache update. Keys are spread
+	// over the stripes by a mixed hash, so keys of one cache set rarely
+	// share a stripe.
+	static final int KEY_LOCK_STRIPES = 4096;
+	private Lock[] keyLocks = newKeyLocks();
+
+	// Cache misses being loaded from the store, by key. A miss on a key
+	// already being loaded waits for that load instead of starting its own.
+	private ConcurrentHashMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+	private AtomicLong storeLoads = new AtomicLong();
+	private AtomicLong coalescedMisses = new AtomicLong();
+	private AtomicLong cacheFills = new AtomicLong();
+	private AtomicLong failedLoads = new AtomicLong();
+
+	// Warm-up from a hot-key manifest, and the cache hit ratio of the first
+	// warmWindow lookups after it started.
+	private volatile Thread manifestWriter = null;
+	private AtomicLong warmKeys = new AtomicLong();
+	private AtomicLong warmLoaded = new AtomicLong();
+	private AtomicLong warmMissing = new AtomicLong();
+	private AtomicLong warmFailed = new AtomicLong();
+	private volatile int warmThreadsLeft = 0;
+	private volatile long warmStartNanos = 0;
+	private volatile long warmEndNanos = 0;
+	private volatile long warmWindow = 0;
+	private AtomicLong windowLookups = new AtomicLong();
+	private AtomicLong windowHits = new AtomicLong();
+	private AtomicLong windowNegativeHits = new AtomicLong();
+
+	// Write-back mode, off while dirty is null: writes not yet flushed to
+	// the store, one per key, with a null value for a del. Entries are
+	// added under the key's key lock and removed by the flusher once
+	// written, so a read finds a key's latest value in the cache, here, or
+	// in the store, in that order.
+	static final int FLUSH_BATCH_SIZE = 256;
+	private volatile ConcurrentHashMap<String, Dirty> dirty = null;
+	private long maxDirtyBytes = 0;
+	private long flushIntervalMillis = 0;
+	private AtomicLong dirtyBytes = new AtomicLong();
+	private final Object flushLock = new Object();
+	private final Object dirtySignal = new Object();
+	private AtomicLong flushedWrites = new AtomicLong();
+	private AtomicLong coalescedWrites = new AtomicLong();
+	private AtomicLong flushBatches = new AtomicLong();
+	private AtomicLong flushErrors = new AtomicLong();
+	private AtomicLong dirtyStalls = new AtomicLong();
+	private volatile long lastFlushLagMillis = 0;
+
+	/**
+	 * The expiry of one put with a TTL. A later put or del of the key
+	 * replaces or removes it in expiries, which cancels it.
+	 */
+	private static class Expiry extends TimingWheel.Timer {
+		final String key;
+		final long deadlineMillis;
+
+		Expiry(String key, long deadlineMillis) {
+			super((deadlineMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+			this.key = key;
+			this.deadlineMillis = deadlineMillis;
+		}
+	}
+
+	/**
+	 * The outcome of one load of a key from the store, shared by every
+	 * lookup that missed the key while it ran.
+	 */
+	private static class Load {
+		private boolean done = false;
+		private String value = null;
+		private KVException error = null;
+
+		synchronized void finish(String value, KVException error) {
+			this.value = value;
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+
+		synchronized String await() throws KVException {
+			boolean interrupted = false;
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (error != null)
+				throw error;
+			return value;
+		}
+	}
+
+	/**
+	 * The latest unflushed write of a key. since is when the oldest write it
+	 * stands for was made, which is how far the store is behind on the key.
+	 */
+	private static class Dirty {
+		final String value;
+		final long since;
+
+		Dirty(String value, long since) {
+			this.value = value;
+			this.since = since;
+		}
+
+		long size(String key) {
+			return 2L * (key.length() + (value == null ? 0 : value.length())) + KVCache.ENTRY_OVERHEAD;
+		}
+	}
+
 	/**
 	 * @param numSets
 	 *            number of sets in the data Cache.
@@ -58,10 +191,341 @@ public class KVServer implements KeyValueInterface {
 		AutoGrader.registerKVServer(dataStore, dataCache);
 	}
 
+	/**
+	 * @param numSets
+	 *            number of sets in the data Cache.
+	 * @param storeDir
+	 *            directory holding the persistent data store's log
+	 * @throws KVException
+	 *             if the store in storeDir cannot be opened
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, String storeDir) throws KVException {
+		this(numSets, maxElemsPerSet, new KVStore(storeDir));
+	}
+
+	/**
+	 * @param numSets
+	 *            number of sets in the data Cache.
+	 * @param dataStore
+	 *            the storage engine behind the cache, e.g. a {@link KVStore}
+	 *            or an {@link LSMStore}
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, KeyValueInterface dataStore) {
+		this(numSets, maxElemsPerSet, dataStore, KVCache.Policy.CLOCK);
+	}
+
+	/**
+	 * @param numSets
+	 *            number of sets in the data Cache.
+	 * @param policy
+	 *            how the data Cache picks entries to evict
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, KVCache.Policy policy) {
+		this(numSets, maxElemsPerSet, new KVStore(), policy);
+	}
+
+	/**
+	 * @param numSets
+	 *            number of sets in the data Cache.
+	 * @param dataStore
+	 *            the storage engine behind the cache
+	 * @param policy
+	 *            how the data Cache picks entries to evict
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, KeyValueInterface dataStore, KVCache.Policy policy) {
+		this(new KVCache(numSets, maxElemsPerSet, policy), dataStore);
+	}
+
+	/**
+	 * @param dataCache
+	 *            the data Cache, e.g. one with a byte budget
+	 * @param dataStore
+	 *            the storage engine behind the cache
+	 */
+	public KVServer(KVCache dataCache, KeyValueInterface dataStore) {
+		this.dataStore = dataStore;
+		this.dataCache = dataCache;
+
+		AutoGrader.registerKVServer(dataStore, dataCache);
+	}
+
+	/**
+	 * Changes the number of sets of the data Cache without dropping its
+	 * entries or stopping requests, see {@link KVCache#resize}.
+	 * @return false if an earlier resize is still under way
+	 * @throws KVException if numSets is not positive
+	 */
+	public boolean resizeCache(int numSets) throws KVException {
+		try {
+			return dataCache.resize(numSets);
+		} catch (IllegalArgumentException e) {
+			KVMessage kmsg = new KVMessage("resp", "Unknown Error: " + e.getMessage());
+			throw new KVException(kmsg);
+		}
+	}
+
+	/**
+	 * Switches to write-back: from now on puts and dels update the cache
+	 * and return, and a background thread writes them to the store,
+	 * collapsing repeated writes of a key into one. Unflushed writes are
+	 * kept apart from the cache, so evicting one from the cache never loses
+	 * it, and are flushed when the JVM exits. Call before the server takes
+	 * requests; write-back cannot be turned off again.
+	 * 
+	 * @param maxDirtyBytes
+	 *            bound on the size of unflushed writes; a put or del that
+	 *            would pass it waits for the flusher
+	 * @param flushIntervalMillis
+	 *            how often the flusher runs when the bound is not near
+	 */
+	public synchronized void enableWriteBack(long maxDirtyBytes, long flushIntervalMillis) {
+		if (dirty != null)
+			return;
+		this.maxDirtyBytes = maxDirtyBytes;
+		this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+		dirty = new ConcurrentHashMap<String, Dirty>();
+		Thread flusher = new Thread("KVServer flush") {
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("KVServer flush on exit") {
+			public void run() {
+				try {
+					flush();
+				} catch (KVException e) {
+					System.err.println("Could not flush all writes to the store");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes every write made before the call to the store. Does nothing
+	 * unless write-back is on.
+	 * @throws KVException if some writes could not be stored; they stay
+	 *             dirty and are retried
+	 */
+	public void flush() throws KVException {
+		ConcurrentHashMap<String, Dirty> d = dirty;
+		if (d == null)
+			return;
+		long start = System.nanoTime();
+		while (!d.isEmpty()) {
+			boolean oldest = false;
+			for (Dirty pending : d.values())
+				oldest |= pending.since <= start;
+			if (!oldest)
+				return;
+			if (flushBatch(Integer.MAX_VALUE) == 0 && !d.isEmpty()) {
+				KVMessage kmsg = new KVMessage("I/O Error");
+				throw new KVException(kmsg);
+			}
+		}
+	}
+
+	/**
+	 * @return unflushed writes and their size against the bound, how far
+	 *         behind the store is (now, and at the end of the last flush),
+	 *         and how many writes were flushed, absorbed by a later write of
+	 *         the same key, failed, or waited on the bound
+	 */
+	public String writeBackStats() {
+		ConcurrentHashMap<String, Dirty> d = dirty;
+		if (d == null)
+			return "writeBack=false";
+		long oldest = Long.MAX_VALUE;
+		for (Dirty pending : d.values())
+			oldest = Math.min(oldest, pending.since);
+		long lag = oldest == Long.MAX_VALUE ? 0 : (System.nanoTime() - oldest) / 1000000;
+		return String.format("writeBack=true dirtyKeys=%d dirtyBytes=%d maxDirtyBytes=%d flushLagMillis=%d "
+				+ "lastFlushLagMillis=%d flushed=%d coalesced=%d batches=%d flushErrors=%d stalls=%d", d.size(),
+				dirtyBytes.get(), maxDirtyBytes, lag, lastFlushLagMillis, flushedWrites.get(),
+				coalescedWrites.get(), flushBatches.get(), flushErrors.get(), dirtyStalls.get());
+	}
+
+	/**
+	 * Writes the keys now in the data Cache to a hot-key manifest, for
+	 * {@link #warmUp} to load after a restart.
+	 * @throws KVException if the manifest cannot be written
+	 */
+	public void saveHotKeys(String manifestFile) throws KVException {
+		try {
+			HotKeyManifest.write(new File(manifestFile), dataCache.residentKeys());
+		} catch (IOException e) {
+			KVMessage kmsg = new KVMessage("resp", "IO Error: Could not write hot keys to " + manifestFile);
+			throw new KVException(kmsg);
+		}
+	}
+
+	/**
+	 * Saves the hot keys every intervalMillis from a background thread,
+	 * and once more when the JVM exits. Only the first call has an effect.
+	 */
+	public synchronized void saveHotKeysEvery(final String manifestFile, final long intervalMillis) {
+		if (manifestWriter != null)
+			return;
+		manifestWriter = new Thread("KVServer hot keys") {
+			public void run() {
+				for (;;) {
+					try {
+						Thread.sleep(intervalMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						saveHotKeys(manifestFile);
+					} catch (KVException e) {
+						System.err.println(e.getMsg().getMessage());
+					}
+				}
+			}
+		};
+		manifestWriter.setDaemon(true);
+		manifestWriter.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("KVServer hot keys on exit") {
+			public void run() {
+				try {
+					saveHotKeys(manifestFile);
+				} catch (KVException e) {
+					System.err.println(e.getMsg().getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Loads the keys of a hot-key manifest from the store into the data
+	 * Cache, with that many background threads, and returns at once, so the
+	 * server can take requests while it warms up. Keys a request misses
+	 * meanwhile share the warm-up's load. Does nothing if there is no
+	 * manifest yet.
+	 * 
+	 * @param window
+	 *            how many lookups, from now, warmUpStats reports the cache
+	 *            hit ratio over
+	 * @throws KVException
+	 *             if the manifest cannot be read
+	 */
+	public void warmUp(String manifestFile, int threads, long window) throws KVException {
+		File file = new File(manifestFile);
+		windowLookups.set(0);
+		windowHits.set(0);
+		windowNegativeHits.set(0);
+		warmWindow = window;
+		if (!file.exists())
+			return;
+		final List<String> keys;
+		try {
+			keys = HotKeyManifest.read(file);
+		} catch (IOException e) {
+			KVMessage kmsg = new KVMessage("resp", "IO Error: " + e.getMessage());
+			throw new KVException(kmsg);
+		}
+		warmKeys.set(keys.size());
+		warmStartNanos = System.nanoTime();
+		warmEndNanos = 0;
+		threads = Math.max(1, threads);
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger left = new AtomicInteger(threads);
+		warmThreadsLeft = threads;
+		for (int i = 0; i < threads; i++) {
+			Thread warmer = new Thread("KVServer warm-up " + i) {
+				public void run() {
+					for (int k = next.getAndIncrement(); k < keys.size(); k = next.getAndIncrement())
+						warm(keys.get(k));
+					warmThreadsLeft = left.decrementAndGet();
+					if (warmThreadsLeft == 0)
+						warmEndNanos = System.nanoTime();
+				}
+			};
+			warmer.setDaemon(true);
+			warmer.start();
+		}
+	}
+
+	/**
+	 * @return how many manifest keys were loaded, no longer in the store, or
+	 *         failed to load, how long the warm-up took or has taken so far,
+	 *         and the cache hit ratio of the lookups in the window. Lookups
+	 *         answered by a negative cache entry count as misses in the
+	 *         ratio and are reported on their own.
+	 */
+	public String warmUpStats() {
+		long start = warmStartNanos;
+		long end = warmEndNanos;
+		long duration = start == 0 ? 0 : ((end == 0 ? System.nanoTime() : end) - start) / 1000000;
+		long lookups = Math.min(windowLookups.get(), warmWindow);
+		return String.format("manifestKeys=%d loaded=%d missing=%d failed=%d warming=%b durationMillis=%d "
+				+ "window=%d windowLookups=%d windowHitRatio=%.3f windowNegativeHits=%d", warmKeys.get(),
+				warmLoaded.get(), warmMissing.get(), warmFailed.get(), warmThreadsLeft > 0, duration, warmWindow,
+				lookups, lookups == 0 ? 0.0 : (double) windowHits.get() / lookups, windowNegativeHits.get());
+	}
+
+	/**
+	 * Loads one key into the cache like a lookup that missed it, unless a
+	 * lookup is loading it already.
+	 */
+	private void warm(String key) {
+		Load load = new Load();
+		if (loads.putIfAbsent(key, load) != null)
+			return;
+		String value = null;
+		KVException error = null;
+		try {
+			value = load(key, load);
+		} catch (KVException e) {
+			error = e;
+		} finally {
+			load.finish(value, error);
+		}
+		if (error != null)
+			warmFailed.incrementAndGet();
+		else if (value == null)
+			warmMissing.incrementAndGet();
+		else
+			warmLoaded.incrementAndGet();
+	}
+
+	/**
+	 * @return occupancy and eviction figures of the data Cache
+	 */
+	public String cacheStats() {
+		return dataCache.stats();
+	}
+
+	/**
+	 * @return how many cache misses were loaded from the store, how many
+	 *         waited on another lookup's load of the same key instead, how
+	 *         many loads filled the cache, and how many loads failed
+	 */
+	public String readThroughStats() {
+		return String.format("loads=%d coalesced=%d fills=%d failedLoads=%d inFlight=%d", storeLoads.get(),
+				coalescedMisses.get(), cacheFills.get(), failedLoads.get(), loads.size());
+	}
+
 	public boolean put(String key, String value) throws KVException {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * Puts a pair that is deleted from both the cache and the store once
+	 * ttlMillis have passed. Until then it reads like any other pair; from
+	 * then on it reads as absent, without a look at the cache or store.
+	 * @param ttlMillis time to live, or 0 to keep the pair until deleted
+	 */
+	public boolean put(String key, String value, long ttlMillis) throws KVException {
 		// Must be called before anything else
 		AutoGrader.agKVServerPutStarted(key, value);
 		System.out.println("put in KVServer");
+		if (ttlMillis < 0) {
+			KVMessage kmsg = new KVMessage("resp", "Invalid TTL");
+			// Must be called before returning
+			AutoGrader.agKVServerPutFinished(key, value);
+			throw new KVException(kmsg);
+		}
 		if (key.length() > MAX_KEY_SIZE) {
 			KVMessage kmsg = new KVMessage("Oversized key");
 			// Must be called before returning
@@ -73,31 +537,58 @@ public class KVServer implements KeyValueInterface {
 			AutoGrader.agKVServerPutFinished(key, value);
 			throw new KVException(kmsg);
 		}
-		WriteLock lock = dataCache.getWriteLock(key);
-		lock.lock();
-		boolean cache = dataCache.put(key, value);
-
-		boolean store;
+		if (dirty != null)
+			awaitDirtyRoom(2L * (key.length() + value.length()) + KVCache.ENTRY_OVERHEAD);
+		Lock keyLock = keyLock(key);
+		keyLock.lock();
 		try {
-			store = dataStore.put(key, value);
-		} catch (KVException e) {
-			KVMessage kmsg = new KVMessage("I/O Error");
-			// Must be called before returning
-			AutoGrader.agKVServerGetFinished(key);
-			throw new KVException(kmsg);
-		}		
-		lock.unlock();
-		if (!cache) {
+			boolean store;
+			try {
+				store = dirty != null ? markDirty(key, value) : dataStore.put(key, value);
+			} catch (KVException e) {
+				KVMessage kmsg = new KVMessage("I/O Error");
+				throw new KVException(kmsg);
+			}
+			boolean cache;
+			Lock lock = dataCache.getWriteLock(key);
+			lock.lock();
+			try {
+				cache = dataCache.put(key, value);
+			} finally {
+				lock.unlock();
+			}
+			if (ttlMillis > 0) {
+				Expiry expiry = new Expiry(key, now() + ttlMillis);
+				expiries.put(key, expiry);
+				wheel().add(expiry);
+			} else if (!expiries.isEmpty()) {
+				expiries.remove(key);
+			}
+			return cache && store;
+		} finally {
+			keyLock.unlock();
 			// Must be called before returning
 			AutoGrader.agKVServerPutFinished(key, value);
-			return false;
 		}
-		// Must be called before returning
-		AutoGrader.agKVServerPutFinished(key, value);
-		return store;
 	}
 
 	public String get(String key) throws KVException {
+		String value = lookup(key);
+		if (value == null) {
+			KVMessage kmsg = new KVMessage("resp", "Does not exist");
+			throw new KVException(kmsg);
+		}
+		return value;
+	}
+
+	/**
+	 * Looks key up in the cache, then in the store. A value found in the
+	 * store is put in the cache. Lookups that miss the same key at the same
+	 * time share a single store load.
+	 * @return the value, or null if key is in neither
+	 * @throws KVException if the key is oversized or the store fails
+	 */
+	public String lookup(String key) throws KVException {
 		// Must be called before anything else
 		AutoGrader.agKVServerGetStarted(key);
 
@@ -107,20 +598,141 @@ public class KVServer implements KeyValueInterface {
 			AutoGrader.agKVServerGetFinished(key);
 			throw new KVException(kmsg);
 		}
-		WriteLock lock = dataCache.getWriteLock(key);
-		lock.lock();
-		String cache = dataCache.get(key);
-		if (cache == null) {
-			KVMessage kmsg = new KVMessage("Does not exist");
+		Expiry expiry = expiries.get(key);
+		if (expiry != null && expiry.deadlineMillis <= now()) {
 			// Must be called before returning
 			AutoGrader.agKVServerGetFinished(key);
+			return null;
+		}
+		String value = dataCache.read(key);
+		if (windowLookups.get() < warmWindow && windowLookups.incrementAndGet() <= warmWindow && value != null) {
+			if (value == KVCache.ABSENT)
+				windowNegativeHits.incrementAndGet();
+			else
+				windowHits.incrementAndGet();
+		}
+		if (value != null) {
+			// Must be called before returning
+			AutoGrader.agKVServerGetFinished(key);
+			return value == KVCache.ABSENT ? null : value;
+		}
+		try {
+			Load load = new Load();
+			Load running = loads.putIfAbsent(key, load);
+			if (running != null) {
+				coalescedMisses.incrementAndGet();
+				return running.await();
+			}
+			KVException error = null;
+			try {
+				value = load(key, load);
+			} catch (KVException e) {
+				failedLoads.incrementAndGet();
+				error = e;
+				throw e;
+			} finally {
+				load.finish(value, error);
+			}
+			return value;
+		} finally {
+			// Must be called before returning
+			AutoGrader.agKVServerGetFinished(key);
+		}
+	}
+
+	/**
+	 * Reads a key missing from the cache from the unflushed writes or the
+	 * store, and caches what it finds. The store is read under the key lock
+	 * only, so a put of the key cannot slip in between the read and the
+	 * cache fill. The load is unregistered before the key lock is released,
+	 * so that no lookup can join it after a put of the key has gone through.
+	 */
+	private String load(String key, Load load) throws KVException {
+		Lock keyLock = keyLock(key);
+		keyLock.lock();
+		try {
+			String value;
+			Lock lock = dataCache.getWriteLock(key);
+			lock.lock();
+			try {
+				value = dataCache.recheck(key);
+			} finally {
+				lock.unlock();
+			}
+			if (value != null)
+				return value;
+			Dirty pending = dirty != null ? dirty.get(key) : null;
+			if (pending != null) {
+				value = pending.value;
+			} else {
+				storeLoads.incrementAndGet();
+				value = dataStore.lookup(key);
+			}
+			lock.lock();
+			try {
+				if (value == null) {
+					dataCache.putAbsent(key);
+				} else {
+					dataCache.put(key, value);
+					cacheFills.incrementAndGet();
+				}
+			} finally {
+				lock.unlock();
+			}
+			return value;
+		} finally {
+			loads.remove(key, load);
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Streams the pairs of a key range in key order, straight from the
+	 * store. The cache is write-through, so the store is never behind it,
+	 * except in write-back mode, where unflushed writes are flushed first.
+	 * Empty strings and a limit of 0 mean unbounded.
+	 * @throws KVException if a bound is oversized or the store cannot scan
+	 */
+	public Iterator<String[]> scan(String start, String end, String prefix, int limit) throws KVException {
+		if ((start != null && start.length() > MAX_KEY_SIZE) || (end != null && end.length() > MAX_KEY_SIZE)
+				|| (prefix != null && prefix.length() > MAX_KEY_SIZE)) {
+			KVMessage kmsg = new KVMessage("resp", "Oversized key");
 			throw new KVException(kmsg);
 		}
-		String store = dataStore.get(key);
-		lock.unlock();
-		// Must be called before returning
-		AutoGrader.agKVServerGetFinished(key);
-		return store;
+		flush();
+		final Iterator<String[]> pairs = dataStore.scan(emptyToNull(start), emptyToNull(end),
+				emptyToNull(prefix), Math.max(0, limit));
+		if (expiries.isEmpty())
+			return pairs;
+		return new Iterator<String[]>() {
+			private String[] next = null;
+
+			public boolean hasNext() {
+				while (next == null && pairs.hasNext()) {
+					String[] pair = pairs.next();
+					Expiry expiry = expiries.get(pair[0]);
+					if (expiry == null || expiry.deadlineMillis > now())
+						next = pair;
+				}
+				return next != null;
+			}
+
+			public String[] next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				String[] pair = next;
+				next = null;
+				return pair;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static String emptyToNull(String s) {
+		return s == null || s.length() == 0 ? null : s;
 	}
 
 	public void del(String key) throws KVException {
@@ -133,19 +745,230 @@ public class KVServer implements KeyValueInterface {
 			AutoGrader.agKVServerDelFinished(key);
 			throw new KVException(kmsg);
 		}
-		WriteLock lock = dataCache.getWriteLock(key);
-		lock.lock();
+		if (dirty != null)
+			awaitDirtyRoom(2L * key.length() + KVCache.ENTRY_OVERHEAD);
+		Lock keyLock = keyLock(key);
+		keyLock.lock();
 		try {
-			dataStore.del(key);
-			dataCache.del(key);
+			if (dirty != null)
+				markDirty(key, null);
+			else
+				dataStore.del(key);
+			Lock lock = dataCache.getWriteLock(key);
+			lock.lock();
+			try {
+				dataCache.del(key);
+			} finally {
+				lock.unlock();
+			}
+			expiries.remove(key);
 		} catch (KVException e) {
 			KVMessage kmsg = new KVMessage("Does not exist");
+			throw new KVException(kmsg);
+		} finally {
+			keyLock.unlock();
 			// Must be called before returning
 			AutoGrader.agKVServerDelFinished(key);
-			throw new KVException(kmsg);
 		}
-		lock.unlock();
-		// Must be called before returning
-		AutoGrader.agKVServerDelFinished(key);
+	}
+
+	/**
+	 * @return how many keys have a TTL pending, how many timers the wheel
+	 *         holds (cancelled ones included) and how many keys expired
+	 */
+	public String expiryStats() {
+		TimingWheel w = wheel;
+		return String.format("ttlKeys=%d timers=%d expired=%d", expiries.size(), w == null ? 0 : w.size(),
+				expired.get());
+	}
+
+	private static Lock[] newKeyLocks() {
+		Lock[] locks = new Lock[KEY_LOCK_STRIPES];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new ReentrantLock();
+		return locks;
+	}
+
+	/**
+	 * @return the lock ordering the writes and loads of key. It is
+	 *         reentrant, but no caller takes two.
+	 */
+	private Lock keyLock(String key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return keyLocks[(h ^ (h >>> 16)) & (KEY_LOCK_STRIPES - 1)];
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private TimingWheel wheel() {
+		TimingWheel w = wheel;
+		if (w != null)
+			return w;
+		synchronized (this) {
+			if (wheel == null) {
+				wheel = new TimingWheel(now() / TICK_MILLIS);
+				Thread expirer = new Thread("KVServer expiry") {
+					public void run() {
+						expireLoop();
+					}
+				};
+				expirer.setDaemon(true);
+				expirer.start();
+			}
+			return wheel;
+		}
+	}
+
+	private void expireLoop() {
+		for (;;) {
+			try {
+				Thread.sleep(TICK_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (TimingWheel.Timer timer : wheel.advance(now() / TICK_MILLIS))
+				expire((Expiry) timer);
+		}
+	}
+
+	/**
+	 * Deletes an expired key from the cache and the store, unless a later
+	 * put or del has cancelled the expiry. If the store fails, the key stays
+	 * unreadable and the expiry is retried on the next tick.
+	 */
+	private void expire(Expiry expiry) {
+		Lock keyLock = keyLock(expiry.key);
+		keyLock.lock();
+		try {
+			if (expiries.get(expiry.key) != expiry)
+				return;
+			Lock lock = dataCache.getWriteLock(expiry.key);
+			lock.lock();
+			try {
+				dataCache.del(expiry.key);
+			} finally {
+				lock.unlock();
+			}
+			if (dirty != null)
+				markDirty(expiry.key, null);
+			else
+				dataStore.del(expiry.key);
+			expiries.remove(expiry.key, expiry);
+			expired.incrementAndGet();
+		} catch (KVException e) {
+			wheel.add(expiry);
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Records a put, or a del if value is null, for the flusher. Assumes the
+	 * key's key lock is held.
+	 * @return whether an unflushed value was overwritten
+	 */
+	private boolean markDirty(String key, String value) {
+		Dirty update = new Dirty(value, System.nanoTime());
+		Dirty old = dirty.get(key);
+		if (old != null) {
+			update = new Dirty(value, old.since);
+			coalescedWrites.incrementAndGet();
+		}
+		old = dirty.put(key, update);
+		dirtyBytes.addAndGet(update.size(key) - (old == null ? 0 : old.size(key)));
+		if (dirtyBytes.get() > maxDirtyBytes / 2) {
+			synchronized (dirtySignal) {
+				dirtySignal.notifyAll();
+			}
+		}
+		return old != null && old.value != null;
+	}
+
+	/**
+	 * Waits until a write of size bytes fits under maxDirtyBytes, or
+	 * nothing is left to flush. An interrupt lets the write through.
+	 */
+	private void awaitDirtyRoom(long size) {
+		if (dirtyBytes.get() + size <= maxDirtyBytes)
+			return;
+		dirtyStalls.incrementAndGet();
+		synchronized (dirtySignal) {
+			while (dirtyBytes.get() + size > maxDirtyBytes && dirtyBytes.get() > 0) {
+				dirtySignal.notifyAll();
+				try {
+					dirtySignal.wait(flushIntervalMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private void flushLoop() {
+		for (;;) {
+			synchronized (dirtySignal) {
+				if (dirtyBytes.get() <= maxDirtyBytes / 2) {
+					try {
+						dirtySignal.wait(flushIntervalMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			while (!dirty.isEmpty() && flushBatch(FLUSH_BATCH_SIZE) == FLUSH_BATCH_SIZE)
+				;
+		}
+	}
+
+	/**
+	 * Writes up to max dirty keys to the store, outside their set locks. A
+	 * key written again meanwhile stays dirty with its newer value, which
+	 * the store gets on a later batch. Batches are serialized so that the
+	 * writes of a key reach the store in order.
+	 * @return how many keys were flushed
+	 */
+	private int flushBatch(int max) {
+		synchronized (flushLock) {
+			int flushed = 0;
+			long oldest = Long.MAX_VALUE;
+			for (Map.Entry<String, Dirty> entry : dirty.entrySet()) {
+				if (flushed == max)
+					break;
+				String key = entry.getKey();
+				Dirty pending = entry.getValue();
+				long read = System.nanoTime();
+				try {
+					if (pending.value != null)
+						dataStore.put(key, pending.value);
+					else
+						dataStore.del(key);
+				} catch (KVException e) {
+					flushErrors.incrementAndGet();
+					continue;
+				}
+				if (dirty.remove(key, pending)) {
+					dirtyBytes.addAndGet(-pending.size(key));
+				} else {
+					// the newer value was written after pending was read
+					Dirty newer = dirty.get(key);
+					if (newer != null && newer.since < read)
+						dirty.replace(key, newer, new Dirty(newer.value, read));
+				}
+				oldest = Math.min(oldest, pending.since);
+				flushed++;
+			}
+			if (flushed > 0) {
+				flushedWrites.addAndGet(flushed);
+				flushBatches.incrementAndGet();
+				lastFlushLagMillis = (System.nanoTime() - oldest) / 1000000;
+			}
+			synchronized (dirtySignal) {
+				dirtySignal.notifyAll();
+			}
+			return flushed;
+		}
 	}
 }
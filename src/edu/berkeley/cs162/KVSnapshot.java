@@ -0,0 +1,432 @@
+/**
+ * Binary snapshot format for the key-value store
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * A compact, read-only binary snapshot of a store.
+ *
+ * Layout: magic(8), then blocks of length(4) crc(4) payload where the
+ * payload is a run of keyLength(4) key valueLength(4) value entries, then
+ * the trailing index: one offset(8) per block followed by one
+ * keyHash(4) block(4) entryOffset(4) slot per entry sorted by keyHash, and
+ * finally a footer indexOffset(8) blockCount(4) entryCount(4) indexCrc(4)
+ * padding(4) magic(8).
+ *
+ * Opening a snapshot maps the file and checks only the index, so single
+ * keys can be served straight away: a lookup binary searches the mapped
+ * index and reads one block, whose CRC is checked the first time it is
+ * touched. Entries are stored in whatever order they were added; the
+ * XML dump stays the interchange format and {@link #main} converts between
+ * the two.
+ */
+public class KVSnapshot {
+	public static final String SUFFIX = ".snap";
+
+	private static final long MAGIC = 0x4b56534e41503031L; // "KVSNAP01"
+	private static final int FOOTER_SIZE = 32;
+	private static final int SLOT_SIZE = 12;
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final long REGION_SIZE = 1L << 30;
+
+	private File file = null;
+	private FileChannel channel = null;
+	private ByteBuffer[] regions = null;
+	private long[] blockOffsets = null;
+	private byte[] verified = null; // 1 once a block's CRC has been checked
+	private ByteBuffer slots = null;
+	private int entryCount = 0;
+
+	/**
+	 * Maps a snapshot file and validates its index.
+	 *
+	 * @throws IOException
+	 *             if the file is not a snapshot or its index is corrupt
+	 */
+	public KVSnapshot(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		try {
+			long size = channel.size();
+			if (size < 8 + FOOTER_SIZE)
+				throw new IOException("Truncated snapshot " + file);
+			regions = new ByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+			for (int i = 0; i < regions.length; i++) {
+				long start = i * REGION_SIZE;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+			}
+			if (slice(0, 8).getLong() != MAGIC)
+				throw new IOException("Not a snapshot: " + file);
+			ByteBuffer footer = slice(size - FOOTER_SIZE, FOOTER_SIZE);
+			long indexOffset = footer.getLong();
+			int blockCount = footer.getInt();
+			entryCount = footer.getInt();
+			int indexCrc = footer.getInt();
+			footer.getInt();
+			long indexLength = 8L * blockCount + (long) SLOT_SIZE * entryCount;
+			if (footer.getLong() != MAGIC || blockCount < 0 || entryCount < 0
+					|| indexOffset + indexLength != size - FOOTER_SIZE || indexLength > Integer.MAX_VALUE)
+				throw new IOException("Corrupt snapshot footer in " + file);
+			ByteBuffer index = slice(indexOffset, (int) indexLength);
+			CRC32 crc = new CRC32();
+			crc.update(index.duplicate());
+			if ((int) crc.getValue() != indexCrc)
+				throw new IOException("Corrupt snapshot index in " + file);
+			blockOffsets = new long[blockCount];
+			for (int i = 0; i < blockCount; i++)
+				blockOffsets[i] = index.getLong();
+			verified = new byte[blockCount];
+			slots = index.slice();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the value of key, or null if the snapshot does not hold it
+	 */
+	public String get(String key) throws IOException {
+		int hash = key.hashCode();
+		byte[] target = key.getBytes(KVLog.UTF8);
+		for (int slot = firstSlot(hash); slot < entryCount && slots.getInt(slot * SLOT_SIZE) == hash; slot++) {
+			ByteBuffer block = block(slots.getInt(slot * SLOT_SIZE + 4));
+			block.position(slots.getInt(slot * SLOT_SIZE + 8));
+			int keyLength = block.getInt();
+			if (keyLength != target.length)
+				continue;
+			byte[] stored = new byte[keyLength];
+			block.get(stored);
+			if (!Arrays.equals(stored, target))
+				continue;
+			byte[] value = new byte[block.getInt()];
+			block.get(value);
+			return new String(value, KVLog.UTF8);
+		}
+		return null;
+	}
+
+	public int size() {
+		return entryCount;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return every {key, value} entry, block by block in file order
+	 */
+	public Iterator<String[]> iterator() {
+		return new Iterator<String[]>() {
+			private int next = 0;
+			private ByteBuffer block = null;
+
+			public boolean hasNext() {
+				return (block != null && block.hasRemaining()) || next < blockOffsets.length;
+			}
+
+			public String[] next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				if (block == null || !block.hasRemaining()) {
+					try {
+						block = block(next++);
+					} catch (IOException e) {
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+				}
+				byte[] key = new byte[block.getInt()];
+				block.get(key);
+				byte[] value = new byte[block.getInt()];
+				block.get(value);
+				return new String[] { new String(key, KVLog.UTF8), new String(value, KVLog.UTF8) };
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Closes the file. Mapped regions are released by the garbage collector.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @return the first index slot whose hash is not below hash
+	 */
+	private int firstSlot(int hash) {
+		int lo = 0;
+		int hi = entryCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (slots.getInt(mid * SLOT_SIZE) < hash)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the payload of block id, checking its CRC on first use
+	 */
+	private ByteBuffer block(int id) throws IOException {
+		if (id < 0 || id >= blockOffsets.length)
+			throw new IOException("Corrupt snapshot index in " + file);
+		ByteBuffer header = slice(blockOffsets[id], 8);
+		int length = header.getInt();
+		int expected = header.getInt();
+		ByteBuffer payload = slice(blockOffsets[id] + 8, length);
+		if (verified[id] == 0) {
+			CRC32 crc = new CRC32();
+			crc.update(payload.duplicate());
+			if ((int) crc.getValue() != expected)
+				throw new IOException("Corrupt block " + id + " in snapshot " + file);
+			verified[id] = 1;
+		}
+		return payload;
+	}
+
+	/**
+	 * @return a buffer over [position, position + length) of the file, a
+	 *         view of the mapping unless the range straddles two regions
+	 */
+	private ByteBuffer slice(long position, int length) throws IOException {
+		int region = (int) (position / REGION_SIZE);
+		int offset = (int) (position % REGION_SIZE);
+		if (offset + (long) length <= regions[region].capacity()) {
+			ByteBuffer view = regions[region].duplicate();
+			view.position(offset);
+			view.limit(offset + length);
+			return view.slice();
+		}
+		ByteBuffer copy = ByteBuffer.allocate(length);
+		while (copy.hasRemaining()) {
+			if (channel.read(copy, position + copy.position()) < 0)
+				throw new IOException("Truncated snapshot " + file);
+		}
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * Writes a snapshot one entry at a time. The index is kept in memory
+	 * (16 bytes per entry) until finish().
+	 */
+	public static class Builder {
+		private FileOutputStream file = null;
+		private DataOutputStream out = null;
+		private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+		private long position = 8;
+		private long[] blockOffsets = new long[64];
+		private int blockCount = 0;
+		private long[] hashes = new long[1024]; // hash << 32 | entry number
+		private int[] entryBlocks = new int[1024];
+		private int[] entryOffsets = new int[1024];
+		private int entryCount = 0;
+
+		public Builder(File target) throws IOException {
+			file = new FileOutputStream(target);
+			out = new DataOutputStream(new BufferedOutputStream(file, 256 * 1024));
+			out.writeLong(MAGIC);
+		}
+
+		public void add(String key, String value) throws IOException {
+			byte[] k = key.getBytes(KVLog.UTF8);
+			byte[] v = value.getBytes(KVLog.UTF8);
+			int length = 8 + k.length + v.length;
+			if (block.position() > 0 && block.remaining() < length)
+				writeBlock();
+			if (block.capacity() < length) {
+				block = ByteBuffer.allocate(length);
+			}
+			if (entryCount == hashes.length) {
+				hashes = Arrays.copyOf(hashes, entryCount * 2);
+				entryBlocks = Arrays.copyOf(entryBlocks, entryCount * 2);
+				entryOffsets = Arrays.copyOf(entryOffsets, entryCount * 2);
+			}
+			hashes[entryCount] = ((long) key.hashCode() << 32) | entryCount;
+			entryBlocks[entryCount] = blockCount;
+			entryOffsets[entryCount] = block.position();
+			entryCount++;
+			block.putInt(k.length);
+			block.put(k);
+			block.putInt(v.length);
+			block.put(v);
+		}
+
+		/**
+		 * Writes the index and footer and syncs the file.
+		 */
+		public void finish() throws IOException {
+			try {
+				if (block.position() > 0)
+					writeBlock();
+				long indexOffset = position;
+				ByteBuffer index = ByteBuffer.allocate(8 * blockCount + SLOT_SIZE * entryCount);
+				for (int i = 0; i < blockCount; i++)
+					index.putLong(blockOffsets[i]);
+				long[] sorted = Arrays.copyOf(hashes, entryCount);
+				Arrays.sort(sorted);
+				for (long entry : sorted) {
+					int n = (int) entry;
+					index.putInt((int) (entry >> 32));
+					index.putInt(entryBlocks[n]);
+					index.putInt(entryOffsets[n]);
+				}
+				CRC32 crc = new CRC32();
+				crc.update(index.array());
+				out.write(index.array());
+				out.writeLong(indexOffset);
+				out.writeInt(blockCount);
+				out.writeInt(entryCount);
+				out.writeInt((int) crc.getValue());
+				out.writeInt(0);
+				out.writeLong(MAGIC);
+				out.flush();
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+		}
+
+		private void writeBlock() throws IOException {
+			if (blockCount == blockOffsets.length)
+				blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+			blockOffsets[blockCount++] = position;
+			CRC32 crc = new CRC32();
+			crc.update(block.array(), 0, block.position());
+			out.writeInt(block.position());
+			out.writeInt((int) crc.getValue());
+			out.write(block.array(), 0, block.position());
+			position += 8 + block.position();
+			if (block.capacity() > BLOCK_SIZE)
+				block = ByteBuffer.allocate(BLOCK_SIZE);
+			else
+				block.clear();
+		}
+	}
+
+	/**
+	 * Converts an XML dump into a binary snapshot, streaming the entries.
+	 *
+	 * @return the number of entries converted
+	 */
+	public static long fromXML(File xmlFile, File snapshotFile) throws IOException, XMLStreamException {
+		InputStream in = new BufferedInputStream(new FileInputStream(xmlFile), 256 * 1024);
+		try {
+			XMLStreamReader xml = KVStore.newXMLInputFactory().createXMLStreamReader(in, "UTF-8");
+			Builder builder = new Builder(snapshotFile);
+			String[] pair;
+			long count = 0;
+			while ((pair = KVStore.readXMLPair(xml)) != null) {
+				builder.add(pair[0], pair[1]);
+				count++;
+			}
+			builder.finish();
+			return count;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Converts a binary snapshot into an XML dump.
+	 *
+	 * @return the number of entries converted
+	 */
+	public static long toXML(File snapshotFile, File xmlFile) throws IOException, XMLStreamException {
+		KVSnapshot snapshot = new KVSnapshot(snapshotFile);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(xmlFile), 256 * 1024);
+		try {
+			XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+			KVStore.writeXMLStart(xml);
+			long count = 0;
+			for (Iterator<String[]> entries = snapshot.iterator(); entries.hasNext(); count++) {
+				String[] entry = entries.next();
+				KVStore.writeXMLPair(xml, entry[0], entry[1]);
+			}
+			KVStore.writeXMLEnd(xml);
+			return count;
+		} finally {
+			out.close();
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Converts between the XML and binary formats, choosing the direction
+	 * from the input's extension.
+	 *
+	 * @param args
+	 *            input file and output file, e.g. "dump.xml store.snap"
+	 */
+	public static void main(String[] args) throws IOException, XMLStreamException {
+		if (args.length != 2) {
+			System.err.println("usage: KVSnapshot <in.xml|in" + SUFFIX + "> <out" + SUFFIX + "|out.xml>");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		long count;
+		if (args[0].endsWith(SUFFIX))
+			count = toXML(new File(args[0]), new File(args[1]));
+		else
+			count = fromXML(new File(args[0]), new File(args[1]));
+		System.out.println("Converted " + count + " entries in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
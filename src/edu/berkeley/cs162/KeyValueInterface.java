@@ -31,6 +31,7 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 /**
  * This is the simple interface that all of the KeyValue servers,
@@ -54,6 +55,15 @@ public interface KeyValueInterface {
 	 * @throws KVException if there is an error when looking up the object store
 	 */
 	public String get(String key) throws KVException;
+
+	/**
+	 * Retrieve the object corresponding to the provided key, treating a
+	 * missing key as a normal outcome rather than an error
+	 * @param key is the object used to index into the store
+	 * @return the value corresponding to the provided key, or null if there is none
+	 * @throws KVException if there is an error when looking up the object store
+	 */
+	public String lookup(String key) throws KVException;
 	
 	/**
 	 * Delete the object corresponding to the provided key 
@@ -61,4 +71,15 @@ public interface KeyValueInterface {
 	 * @throws KVException if there is an error when looking up the object store
 	 */	
 	public void del(String key) throws KVException;	
+
+	/**
+	 * Walk the pairs of a key range in key order
+	 * @param start first key to return, or null to start at the beginning
+	 * @param end key to stop before, or null for no upper bound
+	 * @param prefix only return keys starting with this, or null for all
+	 * @param limit most pairs to return, or 0 for no limit
+	 * @return an iterator of {key, value} pairs
+	 * @throws KVException if the storage unit cannot be scanned
+	 */
+	public Iterator<String[]> scan(String start, String end, String prefix, int limit) throws KVException;
 }
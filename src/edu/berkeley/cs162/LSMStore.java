@@ -0,0 +1,927 @@
+/**
+ * Log-structured merge-tree storage engine for the key-value store
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An alternative to {@link KVStore} built as a log-structured merge tree.
+ *
+ * Writes go to a write-ahead log and a concurrent sorted memtable. When the
+ * memtable grows past memtableSize it is frozen, a fresh memtable and log
+ * are started, and a background flusher writes the frozen one out as an
+ * immutable {@link SSTable}. A background compactor merges runs of
+ * similarly sized, adjacent tables (size-tiered compaction) once
+ * compactionThreshold of them exist. Reads consult the memtable, the frozen
+ * memtable and then the tables from newest to oldest.
+ *
+ * Every memtable has a generation: its log is wal-G.log and it is flushed to
+ * sst-G.sst. A merged table is named after the newest generation it holds
+ * and records the oldest in its footer, so on restart the leftovers of a
+ * compaction interrupted before its inputs were deleted are recognised and
+ * removed. Recovery replays at most the logs of two memtables.
+ */
+public class LSMStore implements KeyValueInterface {
+	public static final long DEFAULT_MEMTABLE_SIZE = 4L * 1024 * 1024;
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+
+	/**
+	 * Marks a deleted key in memtables and tables. Compared by identity.
+	 */
+	static final String TOMBSTONE = new String("");
+
+	// pairs a scan reads per hold of the tables lock
+	static final int SCAN_BATCH_SIZE = 1000;
+
+	private static final String WAL_PREFIX = "wal-";
+	private static final String WAL_SUFFIX = ".log";
+	private static final String TABLE_PREFIX = "sst-";
+	private static final String TABLE_SUFFIX = ".sst";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private File dir = null;
+	private long memtableSize = DEFAULT_MEMTABLE_SIZE;
+	private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	// walLock guards the active memtable, its log and the switch to a new one
+	private final Object walLock = new Object();
+	private volatile ConcurrentSkipListMap<String, String> memtable = null;
+	private AtomicLong memtableBytes = new AtomicLong();
+	private long generation = 0;
+	private FileChannel wal = null;
+	private long walSize = 0;
+	private long walWritten = 0;
+	private final Object syncLock = new Object();
+	// writes in the log but not yet synced, in log order; they reach the
+	// memtable only once synced. Guarded by walLock.
+	private ArrayDeque<Pending> unsynced = new ArrayDeque<Pending>();
+	private IOException failure = null; // set if a failed sync could not be cut out of the log
+
+	// frozen memtable waiting for the flusher, guarded by walLock for writers
+	private volatile ConcurrentSkipListMap<String, String> frozen = null;
+	private long frozenGeneration = 0;
+
+	// newest first; replaced wholesale under the write lock
+	private volatile List<SSTable> tables = null;
+	private ReentrantReadWriteLock tablesLock = new ReentrantReadWriteLock();
+	private final Object compactionSignal = new Object();
+
+	private Thread flusher = null;
+	private Thread compactor = null;
+	private volatile boolean closed = false;
+
+	private AtomicLong flushes = new AtomicLong();
+	private AtomicLong compactions = new AtomicLong();
+	private AtomicLong compactedBytes = new AtomicLong();
+
+	public LSMStore(String dir) throws KVException {
+		this(dir, DEFAULT_MEMTABLE_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * Opens (creating if needed) the store in dir.
+	 *
+	 * @param memtableSize
+	 *            approximate bytes a memtable holds before it is flushed
+	 * @param compactionThreshold
+	 *            number of similarly sized tables that triggers a merge
+	 * @throws KVException
+	 *             if the directory cannot be used or holds a corrupt table
+	 */
+	public LSMStore(String dir, long memtableSize, int compactionThreshold) throws KVException {
+		this.dir = new File(dir);
+		this.memtableSize = memtableSize;
+		this.compactionThreshold = Math.max(2, compactionThreshold);
+		try {
+			recover();
+		} catch (IOException e) {
+			KVMessage kmsg = new KVMessage("resp", "Unknown Error: Could not open store in " + dir);
+			throw new KVException(kmsg);
+		}
+
+		flusher = new Thread("LSMStore flusher " + this.dir.getName()) {
+			public void run() {
+				flushLoop();
+			}
+		};
+		compactor = new Thread("LSMStore compactor " + this.dir.getName()) {
+			public void run() {
+				compactLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		compactor.setDaemon(true);
+		flusher.start();
+		compactor.start();
+	}
+
+	/**
+	 * Writes are blind, so the return value only reports an overwrite of a
+	 * key still held in the active memtable.
+	 */
+	public boolean put(String key, String value) throws KVException {
+		AutoGrader.agStorePutStarted(key, value);
+
+		try {
+			String previous = write(key, value);
+			return previous != null && previous != TOMBSTONE;
+		} catch (IOException e) {
+			KVMessage msg = new KVMessage("resp", "IO Error: Could not write key \"" + key + "\" to store");
+			throw new KVException(msg);
+		} finally {
+			AutoGrader.agStorePutFinished(key, value);
+		}
+	}
+
+	public String get(String key) throws KVException {
+		String retVal = lookup(key);
+		if (retVal == null) {
+			KVMessage msg = new KVMessage("resp", "key \"" + key + "\" does not exist in store");
+			throw new KVException(msg);
+		}
+		return retVal;
+	}
+
+	public String lookup(String key) throws KVException {
+		AutoGrader.agStoreGetStarted(key);
+
+		try {
+			String retVal = newest(key);
+			return retVal == TOMBSTONE ? null : retVal;
+		} catch (IOException e) {
+			KVMessage msg = new KVMessage("resp", "IO Error: Could not read key \"" + key + "\" from store");
+			throw new KVException(msg);
+		} finally {
+			AutoGrader.agStoreGetFinished(key);
+		}
+	}
+
+	public void del(String key) throws KVException {
+		AutoGrader.agStoreDelStarted(key);
+
+		try {
+			if (key != null)
+				write(key, TOMBSTONE);
+		} catch (IOException e) {
+			KVMessage msg = new KVMessage("resp", "IO Error: Could not delete key \"" + key + "\" from store");
+			throw new KVException(msg);
+		} finally {
+			AutoGrader.agStoreDelFinished(key);
+		}
+	}
+
+	/**
+	 * Walks the live pairs from start up to end in key order, merging the
+	 * memtables and tables newest first as a lookup does. Pairs are read
+	 * SCAN_BATCH_SIZE at a time, each batch under the tables lock and the
+	 * next one resuming after its last key, so a long scan never holds off
+	 * compaction for more than one batch. Writes made during the scan may
+	 * or may not show up.
+	 * @param start first key to return, or null to start at the beginning
+	 * @param end key to stop before, or null for no upper bound
+	 * @param prefix only return keys starting with this, or null for all
+	 * @param limit most pairs to return, or 0 for no limit
+	 * @return an iterator of {key, value} pairs. It throws
+	 *         IllegalStateException if a later batch cannot be read.
+	 * @throws KVException if the first batch cannot be read
+	 */
+	public Iterator<String[]> scan(String start, final String end, final String prefix, final int limit)
+			throws KVException {
+		String first = start;
+		if (prefix != null && (first == null || first.compareTo(prefix) < 0))
+			first = prefix;
+		final String from = first;
+		Iterator<String[]> pairs = new Iterator<String[]>() {
+			private ArrayDeque<String[]> batch = new ArrayDeque<String[]>();
+			private String resume = from;
+			private boolean exhausted = false;
+			private int returned = 0;
+
+			public boolean hasNext() {
+				if (batch.isEmpty() && !exhausted && (limit <= 0 || returned < limit)) {
+					int size = limit > 0 ? Math.min(SCAN_BATCH_SIZE, limit - returned) : SCAN_BATCH_SIZE;
+					exhausted = readBatch(resume, end, prefix, size, batch) < size;
+					if (!batch.isEmpty())
+						resume = batch.peekLast()[0] + '\0'; // the least key after it
+				}
+				return !batch.isEmpty();
+			}
+
+			public String[] next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				returned++;
+				return batch.poll();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		try {
+			pairs.hasNext();
+		} catch (IllegalStateException e) {
+			KVMessage msg = new KVMessage("resp", "IO Error: Could not scan store");
+			throw new KVException(msg);
+		}
+		return pairs;
+	}
+
+	/**
+	 * Adds up to size live pairs from from up to end to batch, under the
+	 * tables lock.
+	 * @return the number of pairs added, less than size once the range is
+	 *         exhausted
+	 * @throws IllegalStateException if a table cannot be read
+	 */
+	private int readBatch(String from, String end, String prefix, int size, ArrayDeque<String[]> batch) {
+		ArrayList<Iterator<Map.Entry<String, String>>> sources = new ArrayList<Iterator<Map.Entry<String, String>>>();
+		sources.add(range(memtable, from));
+		ConcurrentSkipListMap<String, String> pending = frozen;
+		if (pending != null)
+			sources.add(range(pending, from));
+		int added = 0;
+		tablesLock.readLock().lock();
+		try {
+			for (SSTable table : tables)
+				sources.add(table.iterator(from));
+			Iterator<Map.Entry<String, String>> merged = new MergeIterator(sources, true);
+			while (added < size && merged.hasNext()) {
+				Map.Entry<String, String> entry = merged.next();
+				String key = entry.getKey();
+				if (from != null && key.compareTo(from) < 0)
+					continue;
+				if ((end != null && key.compareTo(end) >= 0) || (prefix != null && !key.startsWith(prefix)))
+					break;
+				batch.add(new String[] { key, entry.getValue() });
+				added++;
+			}
+		} finally {
+			tablesLock.readLock().unlock();
+		}
+		return added;
+	}
+
+	private static Iterator<Map.Entry<String, String>> range(ConcurrentSkipListMap<String, String> map, String from) {
+		return (from == null ? map : map.tailMap(from)).entrySet().iterator();
+	}
+
+	/**
+	 * Stops the background threads and closes the files. The memtable is
+	 * left in its log and is replayed on the next open.
+	 */
+	public void close() throws KVException {
+		closed = true;
+		synchronized (walLock) {
+			walLock.notifyAll();
+		}
+		synchronized (compactionSignal) {
+			compactionSignal.notifyAll();
+		}
+		try {
+			flusher.join();
+			compactor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		tablesLock.writeLock().lock();
+		try {
+			synchronized (walLock) {
+				try {
+					wal.force(false);
+				} catch (IOException e) {
+					failUnsynced(e);
+					throw e;
+				}
+				applySynced(walWritten);
+				wal.close();
+			}
+			for (SSTable table : tables)
+				table.close();
+		} catch (IOException e) {
+			KVMessage kmsg = new KVMessage("resp", "IO Error: Could not close store");
+			throw new KVException(kmsg);
+		} finally {
+			tablesLock.writeLock().unlock();
+		}
+	}
+
+	public int getTableCount() {
+		return tables.size();
+	}
+
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	public long getCompactionCount() {
+		return compactions.get();
+	}
+
+	/**
+	 * @return a one-line summary of the table layout and background work
+	 */
+	public String stats() {
+		StringBuilder sizes = new StringBuilder();
+		tablesLock.readLock().lock();
+		try {
+			for (SSTable table : tables)
+				sizes.append(" ").append(table.size() / 1024).append("K");
+		} catch (IOException e) {
+			sizes.append(" ?");
+		} finally {
+			tablesLock.readLock().unlock();
+		}
+		return String.format("memtableBytes=%d tables=%d flushes=%d compactions=%d compactedBytes=%d sizes=[%s]",
+				memtableBytes.get(), tables.size(), flushes.get(), compactions.get(), compactedBytes.get(),
+				sizes.toString().trim());
+	}
+
+	/**
+	 * @return the newest value of key, TOMBSTONE if its newest record is a
+	 *         delete, or null if no record of key exists
+	 */
+	private String newest(String key) throws IOException {
+		String value = memtable.get(key);
+		if (value != null)
+			return value;
+		ConcurrentSkipListMap<String, String> pending = frozen;
+		if (pending != null && (value = pending.get(key)) != null)
+			return value;
+		tablesLock.readLock().lock();
+		try {
+			for (SSTable table : tables) {
+				value = table.get(key);
+				if (value != null)
+					return value;
+			}
+		} finally {
+			tablesLock.readLock().unlock();
+		}
+		return null;
+	}
+
+	/**
+	 * A logged write waiting for its sync. Guarded by walLock.
+	 */
+	private static class Pending {
+		final String key;
+		final String value;
+		final long offset; // where its record starts in the log
+		final long sequence;
+		boolean done = false;
+		String previous = null;
+		IOException error = null;
+
+		Pending(String key, String value, long offset, long sequence) {
+			this.key = key;
+			this.value = value;
+			this.offset = offset;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Logs a put (or a delete when value is TOMBSTONE), waits for the log to
+	 * be synced and only then applies the write to the memtable, so readers
+	 * never see a write that is not durable. Concurrent writers share a
+	 * single fsync.
+	 *
+	 * @return the value the memtable held before, if any
+	 */
+	private String write(String key, String value) throws IOException {
+		ByteBuffer record = KVLog.encode(value == TOMBSTONE ? KVLog.DEL : KVLog.PUT, key.getBytes(KVLog.UTF8),
+				value == TOMBSTONE ? new byte[0] : value.getBytes(KVLog.UTF8));
+		Pending write;
+		synchronized (walLock) {
+			if (closed)
+				throw new IOException("Store is closed");
+			if (failure != null)
+				throw failure;
+			if (memtableBytes.get() >= memtableSize)
+				freeze();
+			write = new Pending(key, value, walSize, walWritten + 1);
+			try {
+				while (record.hasRemaining())
+					walSize += wal.write(record, walSize);
+			} catch (IOException e) {
+				cutLog(write.offset, e);
+				throw e;
+			}
+			walWritten = write.sequence;
+			unsynced.add(write);
+		}
+		sync(write);
+		synchronized (walLock) {
+			if (write.error != null)
+				throw write.error;
+			return write.previous;
+		}
+	}
+
+	/**
+	 * Makes the log durable up to write and applies every write synced
+	 * with it. The first writer to arrive fsyncs on behalf of everyone
+	 * queued behind it.
+	 */
+	private void sync(Pending write) {
+		synchronized (syncLock) {
+			long target;
+			FileChannel log;
+			synchronized (walLock) {
+				if (write.done)
+					return;
+				target = walWritten;
+				log = wal;
+			}
+			IOException error = null;
+			try {
+				log.force(false);
+			} catch (ClosedChannelException e) {
+				// freeze() or close() forced the log and applied its writes
+			} catch (IOException e) {
+				error = e;
+			}
+			synchronized (walLock) {
+				if (error == null)
+					applySynced(target);
+				else
+					failUnsynced(error);
+			}
+		}
+	}
+
+	/**
+	 * Applies the synced writes up to sequence target to the memtable, in
+	 * log order, and releases their writers. Called with walLock held.
+	 */
+	private void applySynced(long target) {
+		while (!unsynced.isEmpty() && unsynced.peek().sequence <= target) {
+			Pending write = unsynced.poll();
+			write.previous = memtable.put(write.key, write.value);
+			memtableBytes.addAndGet(2 * (write.key.length() + write.value.length()) + 64);
+			write.done = true;
+		}
+	}
+
+	/**
+	 * Fails every write not yet synced and cuts their records out of the
+	 * log, so that recovery does not replay writes reported as failed.
+	 * Called with walLock held.
+	 */
+	private void failUnsynced(IOException error) {
+		if (unsynced.isEmpty())
+			return;
+		cutLog(unsynced.peek().offset, error);
+		for (Pending write : unsynced) {
+			write.error = error;
+			write.done = true;
+		}
+		unsynced.clear();
+	}
+
+	/**
+	 * Truncates the log back to offset. If that fails, the store takes no
+	 * more writes. Called with walLock held.
+	 */
+	private void cutLog(long offset, IOException cause) {
+		try {
+			wal.truncate(offset);
+			wal.force(false);
+			walSize = offset;
+		} catch (IOException e) {
+			failure = new IOException("Store is closed to writes after a failed log write: " + cause.getMessage());
+		}
+	}
+
+	/**
+	 * Hands the active memtable to the flusher and starts a new generation.
+	 * Waits if the previous frozen memtable has not been flushed yet.
+	 * Called with walLock held.
+	 */
+	private void freeze() throws IOException {
+		while (frozen != null && !closed) {
+			try {
+				walLock.wait();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted waiting for memtable flush");
+			}
+		}
+		if (closed)
+			throw new IOException("Store is closed");
+		// records still waiting in sync() must not be lost with the old log
+		try {
+			wal.force(false);
+		} catch (IOException e) {
+			failUnsynced(e);
+			throw e;
+		}
+		applySynced(walWritten);
+		wal.close();
+		frozenGeneration = generation;
+		frozen = memtable;
+		memtable = new ConcurrentSkipListMap<String, String>();
+		memtableBytes.set(0);
+		openLog(++generation);
+		walLock.notifyAll();
+	}
+
+	private void openLog(long gen) throws IOException {
+		wal = new RandomAccessFile(new File(dir, WAL_PREFIX + gen + WAL_SUFFIX), "rw").getChannel();
+		walSize = wal.size();
+	}
+
+	private void flushLoop() {
+		while (true) {
+			ConcurrentSkipListMap<String, String> pending;
+			long gen;
+			synchronized (walLock) {
+				while (frozen == null && !closed) {
+					try {
+						walLock.wait();
+					} catch (InterruptedException e) {
+						// only close() stops the flusher
+					}
+				}
+				if (frozen == null)
+					return;
+				pending = frozen;
+				gen = frozenGeneration;
+			}
+			try {
+				flush(pending, gen);
+			} catch (IOException e) {
+				System.err.println("LSMStore: flush of generation " + gen + " failed: " + e);
+				// keep the frozen memtable readable and retry later
+				sleepQuietly(1000);
+				continue;
+			}
+			synchronized (walLock) {
+				frozen = null;
+				walLock.notifyAll();
+			}
+			synchronized (compactionSignal) {
+				compactionSignal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes a memtable out as table generation gen, installs it and drops
+	 * its log.
+	 */
+	private void flush(ConcurrentSkipListMap<String, String> pending, long gen) throws IOException {
+		File tmp = new File(dir, TABLE_PREFIX + gen + TMP_SUFFIX);
+		File file = new File(dir, TABLE_PREFIX + gen + TABLE_SUFFIX);
+		SSTable.write(tmp, pending.entrySet().iterator(), gen);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		SSTable table = new SSTable(file, gen);
+		tablesLock.writeLock().lock();
+		try {
+			ArrayList<SSTable> updated = new ArrayList<SSTable>(tables.size() + 1);
+			updated.add(table);
+			updated.addAll(tables);
+			tables = Collections.unmodifiableList(updated);
+		} finally {
+			tablesLock.writeLock().unlock();
+		}
+		new File(dir, WAL_PREFIX + gen + WAL_SUFFIX).delete();
+		flushes.incrementAndGet();
+	}
+
+	private void compactLoop() {
+		while (!closed) {
+			List<SSTable> run = pickCompaction(tables);
+			if (run == null) {
+				synchronized (compactionSignal) {
+					try {
+						if (!closed)
+							compactionSignal.wait(10000);
+					} catch (InterruptedException e) {
+						// only close() stops the compactor
+					}
+				}
+				continue;
+			}
+			try {
+				compact(run);
+			} catch (IOException e) {
+				System.err.println("LSMStore: compaction failed: " + e);
+				sleepQuietly(1000);
+			}
+		}
+	}
+
+	/**
+	 * Size-tiered selection: the smallest window of compactionThreshold
+	 * adjacent tables whose sizes are within a factor of two of each other.
+	 * If there is none but the table count has grown past twice the
+	 * threshold, the newest tables are merged regardless.
+	 *
+	 * @return the tables to merge, newest first, or null if there is nothing
+	 *         worth merging
+	 */
+	private List<SSTable> pickCompaction(List<SSTable> current) {
+		if (current.size() < compactionThreshold)
+			return null;
+		try {
+			int best = -1;
+			long bestTotal = Long.MAX_VALUE;
+			for (int i = 0; i + compactionThreshold <= current.size(); i++) {
+				long min = Long.MAX_VALUE;
+				long max = 0;
+				long total = 0;
+				for (int j = i; j < i + compactionThreshold; j++) {
+					long size = current.get(j).size();
+					min = Math.min(min, size);
+					max = Math.max(max, size);
+					total += size;
+				}
+				if (max <= 2 * Math.max(min, SSTable.BLOCK_SIZE) && total < bestTotal) {
+					best = i;
+					bestTotal = total;
+				}
+			}
+			if (best < 0 && current.size() >= 2 * compactionThreshold)
+				best = 0;
+			if (best < 0)
+				return null;
+			return new ArrayList<SSTable>(current.subList(best, best + compactionThreshold));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Merges a run of adjacent tables into one named after the newest of
+	 * them. Tombstones are dropped when the run reaches the oldest table,
+	 * since nothing older is left for them to shadow.
+	 */
+	private void compact(List<SSTable> run) throws IOException {
+		SSTable newest = run.get(0);
+		SSTable oldest = run.get(run.size() - 1);
+		List<SSTable> current = tables;
+		boolean bottom = current.get(current.size() - 1) == oldest;
+
+		ArrayList<Iterator<Map.Entry<String, String>>> sources = new ArrayList<Iterator<Map.Entry<String, String>>>();
+		long inputBytes = 0;
+		for (SSTable table : run) {
+			sources.add(table.iterator());
+			inputBytes += table.size();
+		}
+		Iterator<Map.Entry<String, String>> merged = new MergeIterator(sources, bottom);
+		long gen = newest.getGeneration();
+		File tmp = new File(dir, TABLE_PREFIX + gen + TMP_SUFFIX);
+		File file = new File(dir, TABLE_PREFIX + gen + TABLE_SUFFIX);
+		try {
+			SSTable.write(tmp, merged, oldest.getMinGeneration());
+		} catch (IllegalStateException e) {
+			tmp.delete();
+			throw new IOException(e.getMessage());
+		}
+
+		tablesLock.writeLock().lock();
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			SSTable table = new SSTable(file, gen);
+			ArrayList<SSTable> updated = new ArrayList<SSTable>();
+			for (SSTable t : tables) {
+				if (t == newest)
+					updated.add(table);
+				else if (!run.contains(t))
+					updated.add(t);
+			}
+			tables = Collections.unmodifiableList(updated);
+			for (SSTable t : run) {
+				t.close();
+				if (t != newest)
+					t.getFile().delete();
+			}
+		} finally {
+			tablesLock.writeLock().unlock();
+		}
+		compactions.incrementAndGet();
+		compactedBytes.addAndGet(inputBytes);
+	}
+
+	/**
+	 * Loads the tables, discarding inputs of an interrupted compaction, then
+	 * flushes every leftover log to a table and starts a new generation.
+	 */
+	private void recover() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create store directory " + dir);
+		ArrayList<Long> tableGens = new ArrayList<Long>();
+		ArrayList<Long> walGens = new ArrayList<Long>();
+		for (String name : dir.list()) {
+			if (name.endsWith(TMP_SUFFIX))
+				new File(dir, name).delete();
+			else if (name.startsWith(TABLE_PREFIX) && name.endsWith(TABLE_SUFFIX))
+				tableGens.add(parseGeneration(name, TABLE_PREFIX, TABLE_SUFFIX));
+			else if (name.startsWith(WAL_PREFIX) && name.endsWith(WAL_SUFFIX))
+				walGens.add(parseGeneration(name, WAL_PREFIX, WAL_SUFFIX));
+		}
+		Collections.sort(tableGens, Collections.reverseOrder());
+		Collections.sort(walGens);
+
+		ArrayList<SSTable> loaded = new ArrayList<SSTable>();
+		long floor = Long.MAX_VALUE;
+		for (long gen : tableGens) {
+			File file = new File(dir, TABLE_PREFIX + gen + TABLE_SUFFIX);
+			if (gen >= floor) {
+				// already merged into a newer table
+				file.delete();
+				continue;
+			}
+			SSTable table = new SSTable(file, gen);
+			loaded.add(table);
+			floor = table.getMinGeneration();
+			generation = Math.max(generation, gen);
+		}
+		tables = Collections.unmodifiableList(loaded);
+
+		for (long gen : walGens) {
+			File file = new File(dir, WAL_PREFIX + gen + WAL_SUFFIX);
+			if (isCovered(loaded, gen)) {
+				// flushed before the crash, only the log was left behind
+				file.delete();
+				continue;
+			}
+			ConcurrentSkipListMap<String, String> replayed = replayLog(file);
+			if (!replayed.isEmpty())
+				flush(replayed, gen);
+			file.delete();
+			generation = Math.max(generation, gen);
+		}
+
+		memtable = new ConcurrentSkipListMap<String, String>();
+		openLog(++generation);
+	}
+
+	private static boolean isCovered(List<SSTable> loaded, long gen) {
+		for (SSTable table : loaded) {
+			if (table.getMinGeneration() <= gen && gen <= table.getGeneration())
+				return true;
+		}
+		return false;
+	}
+
+	private static ConcurrentSkipListMap<String, String> replayLog(File file) throws IOException {
+		ConcurrentSkipListMap<String, String> replayed = new ConcurrentSkipListMap<String, String>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			long remaining = file.length();
+			KVLog.Record record;
+			while ((record = KVLog.readRecord(in, remaining)) != null) {
+				if (record.type == KVLog.PUT)
+					replayed.put(record.key, new String(record.value, KVLog.UTF8));
+				else
+					replayed.put(record.key, TOMBSTONE);
+				remaining -= record.size();
+			}
+		} finally {
+			in.close();
+		}
+		return replayed;
+	}
+
+	private static long parseGeneration(String name, String prefix, String suffix) throws IOException {
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected file " + name);
+		}
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Merges sorted sources, given newest first, into one sorted stream in
+	 * which each key appears once with its newest value.
+	 */
+	static class MergeIterator implements Iterator<Map.Entry<String, String>> {
+		private PriorityQueue<Head> heads = null;
+		private boolean dropTombstones = false;
+		private Map.Entry<String, String> next = null;
+
+		private static class Head {
+			Map.Entry<String, String> entry;
+			final int rank;
+			final Iterator<Map.Entry<String, String>> source;
+
+			Head(int rank, Iterator<Map.Entry<String, String>> source) {
+				this.rank = rank;
+				this.source = source;
+				this.entry = source.next();
+			}
+		}
+
+		MergeIterator(List<Iterator<Map.Entry<String, String>>> sources, boolean dropTombstones) {
+			this.dropTombstones = dropTombstones;
+			heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+				public int compare(Head a, Head b) {
+					int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+					return cmp != 0 ? cmp : a.rank - b.rank;
+				}
+			});
+			for (int i = 0; i < sources.size(); i++) {
+				if (sources.get(i).hasNext())
+					heads.add(new Head(i, sources.get(i)));
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null && !heads.isEmpty()) {
+				Head head = heads.poll();
+				Map.Entry<String, String> entry = head.entry;
+				// skip older versions of the same key
+				while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey()))
+					step(heads.poll());
+				step(head);
+				if (!(dropTombstones && entry.getValue() == TOMBSTONE))
+					next = entry;
+			}
+		}
+
+		private void step(Head head) {
+			if (head.source.hasNext()) {
+				head.entry = head.source.next();
+				heads.add(head);
+			}
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Map.Entry<String, String> next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			Map.Entry<String, String> entry = next;
+			advance();
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Put and get throughput of the in-memory and the log-backed KVStore
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures put and get throughput of a transient KVStore and of one backed
+ * by a KVLog in a directory. Both run without the AutoGrader delays, so
+ * the transient store shows the cost of its map alone and the persistent
+ * one the cost of appending, fsyncing and reading back its log. Puts come
+ * from several threads at once, which is what lets the log's group commit
+ * share an fsync among them; gets then read random keys.
+ */
+public class LogStoreBenchmark {
+	private final KVStore store;
+	private final String[] keys;
+	private final String value;
+
+	public LogStoreBenchmark(KVStore store, int numKeys, int valueSize) {
+		this.store = store;
+		keys = new String[numKeys];
+		for (int i = 0; i < numKeys; i++)
+			keys[i] = "key" + i;
+		char[] chars = new char[valueSize];
+		for (int i = 0; i < valueSize; i++)
+			chars[i] = (char) ('a' + i % 26);
+		value = new String(chars);
+	}
+
+	/**
+	 * Puts every key once, spread over the threads.
+	 * @return puts per second
+	 */
+	public double puts(int threads) throws InterruptedException {
+		final AtomicInteger next = new AtomicInteger();
+		return run(threads, new Runnable() {
+			public void run() {
+				try {
+					for (int i = next.getAndIncrement(); i < keys.length; i = next.getAndIncrement())
+						store.put(keys[i], value);
+				} catch (KVException e) {
+					System.err.println(e.getMsg().getMessage());
+				}
+			}
+		}, keys.length);
+	}
+
+	/**
+	 * Gets as many random keys as there are keys, spread over the threads.
+	 * @return gets per second
+	 */
+	public double gets(final int threads) throws InterruptedException {
+		final int perThread = keys.length / threads;
+		return run(threads, new Runnable() {
+			public void run() {
+				Random random = new Random();
+				try {
+					for (int i = 0; i < perThread; i++)
+						store.lookup(keys[random.nextInt(keys.length)]);
+				} catch (KVException e) {
+					System.err.println(e.getMsg().getMessage());
+				}
+			}
+		}, perThread * threads);
+	}
+
+	private static double run(int threads, Runnable work, long ops) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+			workers[i] = new Thread(work, "benchmark " + i);
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		return ops / ((System.nanoTime() - start) / 1e9);
+	}
+
+	private static void report(String name, LogStoreBenchmark benchmark, int threads) throws InterruptedException {
+		double puts = benchmark.puts(threads);
+		double gets = benchmark.gets(threads);
+		System.out.println(String.format("%s: puts/s=%.0f gets/s=%.0f", name, puts, gets));
+	}
+
+	/**
+	 * @param args
+	 *            dir [keys [valueSize [threads]]]; dir is emptied first
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: LogStoreBenchmark dir [keys [valueSize [threads]]]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		AutoGrader.setDelays(0, 0);
+		File[] old = dir.listFiles();
+		if (old != null) {
+			for (File file : old)
+				file.delete();
+		}
+
+		report("in-memory", new LogStoreBenchmark(new KVStore(), numKeys, valueSize), threads);
+		KVStore persistent = new KVStore(dir.getPath());
+		report("log-backed", new LogStoreBenchmark(persistent, numKeys, valueSize), threads);
+		System.out.println(persistent.commitStats());
+		persistent.close();
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * Miss-path throughput of the throwing get against the null-returning lookup
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Looks up keys that exist nowhere, on a transient KVStore and on a
+ * KVServer in front of one, without the AutoGrader delays. Each is driven
+ * through get, which reports a miss by throwing a KVException as every
+ * miss did before lookup existed, and through lookup, which returns null.
+ */
+public class MissPathBenchmark {
+
+	/**
+	 * @return misses per second of unit.get, or of unit.lookup
+	 */
+	private static double misses(KeyValueInterface unit, boolean throwing, long millis) throws KVException {
+		long deadline = System.nanoTime() + millis * 1000000;
+		long start = System.nanoTime();
+		long done = 0;
+		while ((done & 1023) != 0 || System.nanoTime() < deadline) {
+			String key = "missing" + (done & 0xffff);
+			if (throwing) {
+				try {
+					unit.get(key);
+				} catch (KVException e) {
+					// the miss
+				}
+			} else {
+				unit.lookup(key);
+			}
+			done++;
+		}
+		return done / ((System.nanoTime() - start) / 1e9);
+	}
+
+	private static void report(String name, KeyValueInterface unit, long millis) throws KVException {
+		// warm up both paths before timing them
+		misses(unit, true, millis / 4);
+		misses(unit, false, millis / 4);
+		double thrown = misses(unit, true, millis);
+		double returned = misses(unit, false, millis);
+		System.out.println(String.format("%s: get (throws) misses/s=%.0f lookup (null) misses/s=%.0f speedup=%.1fx",
+				name, thrown, returned, returned / thrown));
+	}
+
+	/**
+	 * @param args
+	 *            [millisPerRun]
+	 */
+	public static void main(String[] args) throws Exception {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 3000;
+		AutoGrader.setDelays(0, 0);
+		KVStore store = new KVStore();
+		for (int i = 0; i < 1000; i++)
+			store.put("key" + i, "value" + i);
+		report("KVStore", store, millis);
+		report("KVServer", new KVServer(new KVCache(100, 10), store), millis);
+	}
+}
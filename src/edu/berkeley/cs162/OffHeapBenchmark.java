@@ -0,0 +1,133 @@
+/**
+ * Heap and GC cost of large values kept on and off the heap
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Fills a transient KVStore with large values, then has several threads
+ * read and overwrite random keys, once with every value on the heap and
+ * once with the large ones in the SlabAllocator. Compression is off in
+ * both, so only where the values live differs. Reported per run: the heap
+ * in use after a full collection at its end, and the count and total time
+ * of the collections it caused. Run each layout in its own JVM for a clean
+ * heap figure.
+ */
+public class OffHeapBenchmark {
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += gc.getCollectionCount();
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += gc.getCollectionTime();
+		return millis;
+	}
+
+	private static long heapAfterGc() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * @return a value of valueSize printable characters drawn from random
+	 */
+	private static String value(Random random, int valueSize) {
+		char[] chars = new char[valueSize];
+		for (int i = 0; i < valueSize; i++)
+			chars[i] = (char) (' ' + random.nextInt(95));
+		return new String(chars);
+	}
+
+	private static void run(String name, final KVStore store, final int numValues, final int valueSize,
+			int threads, final int ops) throws Exception {
+		long count = gcCount();
+		long millis = gcMillis();
+		long start = System.nanoTime();
+		Random random = new Random(0);
+		for (int i = 0; i < numValues; i++)
+			store.put("key" + i, value(random, valueSize));
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int seed = t + 1;
+			workers[t] = new Thread("benchmark " + t) {
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						for (int i = 0; i < ops; i++) {
+							String key = "key" + random.nextInt(numValues);
+							if (random.nextInt(4) == 0)
+								store.put(key, value(random, valueSize));
+							else
+								store.lookup(key);
+						}
+					} catch (KVException e) {
+						System.err.println(e.getMsg().getMessage());
+					}
+				}
+			};
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		long live = heapAfterGc();
+		System.out.println(String.format("%s: liveHeapMB=%.1f gcs=%d gcMillis=%d runMillis=%d", name, live / 1e6,
+				gcCount() - count, gcMillis() - millis, elapsed));
+		if (store.offHeapStats() != null)
+			System.out.println("  " + store.offHeapStats());
+	}
+
+	/**
+	 * @param args
+	 *            [heap|offheap|both [values [valueSize [threads [opsPerThread]]]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "both";
+		int numValues = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+		int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int ops = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+		AutoGrader.setDelays(0, 0);
+		if (!mode.equals("offheap"))
+			run("on heap", new KVStore(0, 0), numValues, valueSize, threads, ops);
+		if (!mode.equals("heap"))
+			run("off heap", new KVStore(KVStore.DEFAULT_OFF_HEAP_THRESHOLD, 0), numValues, valueSize, threads, ops);
+	}
+}
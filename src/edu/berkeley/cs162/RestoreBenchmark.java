@@ -0,0 +1,105 @@
+/**
+ * Cold-start time of KVStore.restoreFromFile
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a dump of the given number of keys in the format of
+ * KVStore.dumpToFile, without building a store for it, then times
+ * restoring it into a fresh transient store and, if a directory is given,
+ * into a log-backed one. A 10M-key restore into the transient store needs
+ * a heap of about 4 GB.
+ */
+public class RestoreBenchmark {
+
+	static void writeDump(File file, long numKeys, String value) throws Exception {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		try {
+			XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+			KVStore.writeXMLStart(xml);
+			for (long i = 0; i < numKeys; i++)
+				KVStore.writeXMLPair(xml, "key" + i, value);
+			KVStore.writeXMLEnd(xml);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void restore(String name, KVStore store, File dump) throws KVException {
+		store.restoreFromFile(dump.getPath());
+		System.out.println(name + ": " + store.restoreStats());
+	}
+
+	/**
+	 * @param args
+	 *            file [keys [valueSize [dir]]]; dir is emptied first
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: RestoreBenchmark file [keys [valueSize [dir]]]");
+			System.exit(1);
+		}
+		File dump = new File(args[0]);
+		long numKeys = args.length > 1 ? Long.parseLong(args[1]) : 10000000;
+		int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+		AutoGrader.setDelays(0, 0);
+		char[] chars = new char[valueSize];
+		for (int i = 0; i < valueSize; i++)
+			chars[i] = (char) ('a' + i % 26);
+
+		long start = System.nanoTime();
+		writeDump(dump, numKeys, new String(chars));
+		System.out.println(String.format("dump: keys=%d MB=%.1f writeMillis=%d", numKeys, dump.length() / 1e6,
+				(System.nanoTime() - start) / 1000000));
+
+		restore("in-memory", new KVStore(), dump);
+		System.gc();
+		if (args.length > 3) {
+			File dir = new File(args[3]);
+			File[] old = dir.listFiles();
+			if (old != null) {
+				for (File file : old)
+					file.delete();
+			}
+			KVStore persistent = new KVStore(dir.getPath());
+			restore("log-backed", persistent, dump);
+			persistent.close();
+		}
+		dump.delete();
+	}
+}
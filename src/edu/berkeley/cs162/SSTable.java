@@ -0,0 +1,303 @@
+/**
+ * Immutable sorted table file for the LSM-tree store
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable file of key-value entries sorted by key. Entries are packed
+ * into blocks of roughly BLOCK_SIZE bytes and a sparse index holding the
+ * first key of every block is kept in memory, so a lookup is one binary
+ * search plus one positioned read of a single block.
+ *
+ * Layout: blocks of entries type(1) keyLength(4) valueLength(4) key value,
+ * then the index as count(4) followed by keyLength(4) key offset(8)
+ * length(4) per block, then a footer indexOffset(8) entries(8)
+ * minGeneration(8) magic(8). A deleted key is stored as a tombstone entry
+ * and read back as {@link LSMStore#TOMBSTONE}.
+ */
+class SSTable {
+	static final int BLOCK_SIZE = 4096;
+
+	private static final long MAGIC = 0x4b5653535461626cL;
+	private static final int FOOTER_SIZE = 32;
+
+	private File file = null;
+	private FileChannel channel = null;
+	private long generation = 0;
+	private long minGeneration = 0;
+	private long entries = 0;
+	private String[] firstKeys = null;
+	private long[] blockOffsets = null;
+	private int[] blockLengths = null;
+
+	/**
+	 * Opens an existing table and loads its sparse index.
+	 *
+	 * @param generation
+	 *            generation of the newest data in the table; newer
+	 *            generations shadow older ones
+	 */
+	SSTable(File file, long generation) throws IOException {
+		this.file = file;
+		this.generation = generation;
+		channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			long size = channel.size();
+			if (size < FOOTER_SIZE)
+				throw new IOException("Truncated table " + file);
+			ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+			long indexOffset = footer.getLong();
+			entries = footer.getLong();
+			minGeneration = footer.getLong();
+			if (footer.getLong() != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER_SIZE)
+				throw new IOException("Corrupt table " + file);
+			ByteBuffer index = read(indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+			int blocks = index.getInt();
+			firstKeys = new String[blocks];
+			blockOffsets = new long[blocks];
+			blockLengths = new int[blocks];
+			for (int i = 0; i < blocks; i++) {
+				byte[] key = new byte[index.getInt()];
+				index.get(key);
+				firstKeys[i] = new String(key, KVLog.UTF8);
+				blockOffsets[i] = index.getLong();
+				blockLengths[i] = index.getInt();
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes entries, which must be in ascending key order, to a new table
+	 * file. The file is fsynced before returning.
+	 *
+	 * @param entries
+	 *            the entries; values identical to LSMStore.TOMBSTONE are
+	 *            written as tombstones
+	 * @param minGeneration
+	 *            oldest generation whose data went into this table
+	 */
+	static void write(File file, Iterator<Map.Entry<String, String>> entries, long minGeneration)
+			throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+			ArrayList<byte[]> firstKeys = new ArrayList<byte[]>();
+			ArrayList<long[]> blocks = new ArrayList<long[]>(); // offset, length
+			long offset = 0;
+			long blockStart = 0;
+			long count = 0;
+			while (entries.hasNext()) {
+				Map.Entry<String, String> entry = entries.next();
+				byte[] key = entry.getKey().getBytes(KVLog.UTF8);
+				boolean tombstone = entry.getValue() == LSMStore.TOMBSTONE;
+				byte[] value = tombstone ? new byte[0] : entry.getValue().getBytes(KVLog.UTF8);
+				if (offset == blockStart) {
+					firstKeys.add(key);
+				}
+				out.writeByte(tombstone ? KVLog.DEL : KVLog.PUT);
+				out.writeInt(key.length);
+				out.writeInt(value.length);
+				out.write(key);
+				out.write(value);
+				offset += 9 + key.length + value.length;
+				count++;
+				if (offset - blockStart >= BLOCK_SIZE) {
+					blocks.add(new long[] { blockStart, offset - blockStart });
+					blockStart = offset;
+				}
+			}
+			if (offset > blockStart)
+				blocks.add(new long[] { blockStart, offset - blockStart });
+			long indexOffset = offset;
+			out.writeInt(blocks.size());
+			for (int i = 0; i < blocks.size(); i++) {
+				out.writeInt(firstKeys.get(i).length);
+				out.write(firstKeys.get(i));
+				out.writeLong(blocks.get(i)[0]);
+				out.writeInt((int) blocks.get(i)[1]);
+			}
+			out.writeLong(indexOffset);
+			out.writeLong(count);
+			out.writeLong(minGeneration);
+			out.writeLong(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * @return the value of key, LSMStore.TOMBSTONE if this table records it
+	 *         as deleted, or null if the table says nothing about key
+	 */
+	String get(String key) throws IOException {
+		int block = findBlock(key);
+		if (block < 0)
+			return null;
+		ByteBuffer buf = read(blockOffsets[block], blockLengths[block]);
+		while (buf.hasRemaining()) {
+			byte type = buf.get();
+			int keyLength = buf.getInt();
+			int valueLength = buf.getInt();
+			int cmp = new String(buf.array(), buf.position(), keyLength, KVLog.UTF8).compareTo(key);
+			if (cmp == 0) {
+				if (type == KVLog.DEL)
+					return LSMStore.TOMBSTONE;
+				return new String(buf.array(), buf.position() + keyLength, valueLength, KVLog.UTF8);
+			}
+			if (cmp > 0)
+				return null;
+			buf.position(buf.position() + keyLength + valueLength);
+		}
+		return null;
+	}
+
+	/**
+	 * @return all entries of the table in key order, reading a block at a
+	 *         time
+	 */
+	Iterator<Map.Entry<String, String>> iterator() {
+		return iterator(null);
+	}
+
+	/**
+	 * @return the entries of the table in key order, starting at the block
+	 *         that may hold from, so a few keys before from can come first
+	 */
+	Iterator<Map.Entry<String, String>> iterator(String from) {
+		final int first = from == null ? 0 : Math.max(0, findBlock(from));
+		return new Iterator<Map.Entry<String, String>>() {
+			private int block = first;
+			private ByteBuffer buf = null;
+
+			public boolean hasNext() {
+				return (buf != null && buf.hasRemaining()) || block < blockOffsets.length;
+			}
+
+			public Map.Entry<String, String> next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				if (buf == null || !buf.hasRemaining()) {
+					try {
+						buf = read(blockOffsets[block], blockLengths[block]);
+					} catch (IOException e) {
+						throw new IllegalStateException("Could not read " + file, e);
+					}
+					block++;
+				}
+				byte type = buf.get();
+				int keyLength = buf.getInt();
+				int valueLength = buf.getInt();
+				String key = new String(buf.array(), buf.position(), keyLength, KVLog.UTF8);
+				String value = type == KVLog.DEL ? LSMStore.TOMBSTONE
+						: new String(buf.array(), buf.position() + keyLength, valueLength, KVLog.UTF8);
+				buf.position(buf.position() + keyLength + valueLength);
+				return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long getGeneration() {
+		return generation;
+	}
+
+	long getMinGeneration() {
+		return minGeneration;
+	}
+
+	long getEntryCount() {
+		return entries;
+	}
+
+	long size() throws IOException {
+		return channel.size();
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @return the block whose first key is the greatest one not above key,
+	 *         or -1 if key sorts before the whole table
+	 */
+	private int findBlock(String key) {
+		int lo = 0;
+		int hi = firstKeys.length - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (firstKeys[mid].compareTo(key) <= 0) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0)
+				throw new EOFException("Short read in table " + file);
+		}
+		buf.flip();
+		return buf;
+	}
+}
@@ -30,6 +30,7 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.File;
 import java.io.IOException;
 
 import edu.berkeley.cs162.KVClientHandler;
@@ -41,13 +42,41 @@ public class Server {
 	static KVServer key_server = null;
 	static SocketServer server = null;
 
+	// hot keys of a persistent store's cache, saved beside its directory,
+	// which the store owns, and loaded back into the cache on the next start
+	static final String HOT_KEYS_SUFFIX = ".hot-keys";
+	static final long HOT_KEYS_INTERVAL_MILLIS = 60 * 1000;
+	static final int WARM_UP_THREADS = 4;
+	static final long WARM_UP_WINDOW = 10000;
+
 	/**
 	 * @param args
+	 *            optional directory for a persistent store, followed by
+	 *            optional engine "log" (default) or "lsm", followed by the
+	 *            optional file for the cache's hot keys, by default the
+	 *            directory's path with HOT_KEYS_SUFFIX appended; without a
+	 *            directory the store is transient, and the cache starts
+	 *            cold instead of warming up from the keys hot when the
+	 *            server last ran
 	 * @throws IOException
 	 */
 	public static void main(String[] args) throws IOException {
 		System.out.println("Binding Server:");
-		key_server = new KVServer(100, 10);
+		if (args.length > 0) {
+			try {
+				if (args.length > 1 && args[1].equals("lsm"))
+					key_server = new KVServer(100, 10, new LSMStore(args[0]));
+				else
+					key_server = new KVServer(100, 10, args[0]);
+				String hotKeys = args.length > 2 ? args[2] : hotKeysFile(args[0]);
+				key_server.warmUp(hotKeys, WARM_UP_THREADS, WARM_UP_WINDOW);
+				key_server.saveHotKeysEvery(hotKeys, HOT_KEYS_INTERVAL_MILLIS);
+			} catch (KVException e) {
+				throw new IOException(e.getMsg().getMessage());
+			}
+		} else {
+			key_server = new KVServer(100, 10);
+		}
 		server = new SocketServer("localhost", 8080);
 		NetworkHandler handler = new KVClientHandler(key_server);
 		server.addHandler(handler);
@@ -55,4 +84,12 @@ public class Server {
 		System.out.println("Starting Server");
 		server.run();
 	}
+
+	/**
+	 * @return the default hot-key manifest of the store in dir
+	 */
+	static String hotKeysFile(String dir) throws IOException {
+		File store = new File(dir).getCanonicalFile();
+		return new File(store.getParentFile(), store.getName() + HOT_KEYS_SUFFIX).getPath();
+	}
 }
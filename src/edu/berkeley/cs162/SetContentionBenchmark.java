@@ -0,0 +1,169 @@
+/**
+ * Latency benchmark for keys that share a cache set
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how long gets and puts of keys take while another key of the
+ * same cache set is being written. One thread keeps putting a hot key;
+ * reader threads get other keys of its set, which are all cached, and
+ * writer threads put other keys of its set. Requests go through a KVServer
+ * with the AutoGrader delays in force, so every store write takes
+ * STORE_DELAY. Latency percentiles are printed per kind of request.
+ */
+public class SetContentionBenchmark {
+	private final KVServer server;
+	private final String hotKey;
+	private final String[] readKeys;
+	private final String[] writeKeys;
+	private volatile boolean running = true;
+
+	/**
+	 * Picks the hot key and one key per reader and writer, all in set 0 of
+	 * a cache of numSets sets, and puts them in the server.
+	 */
+	public SetContentionBenchmark(int numSets, int maxElemsPerSet, int readers, int writers)
+			throws KVException, InterruptedException {
+		server = new KVServer(numSets, maxElemsPerSet);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; keys.size() < 1 + readers + writers; i++) {
+			String key = "key" + i;
+			if ((key.hashCode() & 0x7fffffff) % numSets == 0)
+				keys.add(key);
+		}
+		hotKey = keys.get(0);
+		readKeys = keys.subList(1, 1 + readers).toArray(new String[readers]);
+		writeKeys = keys.subList(1 + readers, keys.size()).toArray(new String[writers]);
+		// the readers' keys must stay cached for their gets to be hits
+		if (readers + 1 > maxElemsPerSet)
+			throw new IllegalArgumentException("More readers than a set holds");
+		for (String key : keys)
+			server.put(key, "value");
+	}
+
+	/**
+	 * Runs the benchmark for the given time.
+	 * @return latencies in nanoseconds, of gets then of puts
+	 */
+	public long[][] run(long millis) throws InterruptedException {
+		final List<long[]> gets = new ArrayList<long[]>();
+		final List<long[]> puts = new ArrayList<long[]>();
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(new Thread("hot writer") {
+			public void run() {
+				for (int i = 0; running; i++)
+					request(hotKey, true, i);
+			}
+		});
+		for (final String key : readKeys)
+			threads.add(measure(key, false, gets));
+		for (final String key : writeKeys)
+			threads.add(measure(key, true, puts));
+		for (Thread thread : threads)
+			thread.start();
+		Thread.sleep(millis);
+		running = false;
+		for (Thread thread : threads)
+			thread.join();
+		return new long[][] { merge(gets), merge(puts) };
+	}
+
+	private Thread measure(final String key, final boolean put, final List<long[]> results) {
+		return new Thread() {
+			public void run() {
+				long[] latencies = new long[1024];
+				int count = 0;
+				for (int i = 0; running; i++) {
+					long start = System.nanoTime();
+					request(key, put, i);
+					if (count == latencies.length)
+						latencies = Arrays.copyOf(latencies, count * 2);
+					latencies[count++] = System.nanoTime() - start;
+				}
+				synchronized (results) {
+					results.add(Arrays.copyOf(latencies, count));
+				}
+			}
+		};
+	}
+
+	private void request(String key, boolean put, int i) {
+		try {
+			if (put)
+				server.put(key, "value" + i);
+			else
+				server.get(key);
+		} catch (KVException e) {
+			System.err.println(key + ": " + e.getMsg().getMessage());
+		}
+	}
+
+	private static long[] merge(List<long[]> parts) {
+		int size = 0;
+		for (long[] part : parts)
+			size += part.length;
+		long[] all = new long[size];
+		int at = 0;
+		for (long[] part : parts) {
+			System.arraycopy(part, 0, all, at, part.length);
+			at += part.length;
+		}
+		Arrays.sort(all);
+		return all;
+	}
+
+	private static String summary(String name, long[] sorted) {
+		if (sorted.length == 0)
+			return name + ": none";
+		return String.format("%s: n=%d p50=%.1fms p99=%.1fms max=%.1fms", name, sorted.length,
+				sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+				sorted[sorted.length - 1] / 1e6);
+	}
+
+	/**
+	 * @param args
+	 *            [seconds [readers writers [numSets maxElemsPerSet]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+		int readers = args.length > 2 ? Integer.parseInt(args[1]) : 4;
+		int writers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		int numSets = args.length > 4 ? Integer.parseInt(args[3]) : 100;
+		int maxElemsPerSet = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		SetContentionBenchmark benchmark = new SetContentionBenchmark(numSets, maxElemsPerSet, readers, writers);
+		long[][] latencies = benchmark.run(seconds * 1000);
+		System.out.println(summary("gets of other keys in the set", latencies[0]));
+		System.out.println(summary("puts of other keys in the set", latencies[1]));
+	}
+}
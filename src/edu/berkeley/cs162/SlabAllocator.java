@@ -0,0 +1,251 @@
+/**
+ * Off-heap slab allocator for large values of the in-memory store
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps values as UTF-8 bytes in direct ByteBuffers outside the Java heap,
+ * so that only a small {@link Handle} per value is left for the garbage
+ * collector to trace and copy.
+ *
+ * Memory is reserved in slabs of SLAB_SIZE bytes. Each slab belongs to one
+ * size class and is cut into equal slots. Slot sizes grow by alternating
+ * factors of 1.5 and 4/3 from MIN_SLOT_SIZE, so a value wastes at most a
+ * third of its slot. Freed slots go on their class's free list and are
+ * reused before a new slab is reserved. Slabs are never given back. A value
+ * too big for any slot gets a direct buffer of its own. Values of at least
+ * compressionThreshold bytes are stored in their {@link ValueCodec} form
+ * when that is smaller.
+ *
+ * Allocation and free are synchronized per size class. Reads take no lock.
+ * The caller must make sure a handle is not freed while it is being read,
+ * or must check afterwards that the handle is still live and read again.
+ */
+class SlabAllocator {
+	static final int MIN_SLOT_SIZE = 1024;
+	static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+	private SizeClass[] classes = null;
+	private int[] slotSizes = null;
+	private int compressionThreshold = 0;
+
+	private AtomicLong liveValues = new AtomicLong();
+	private AtomicLong usedBytes = new AtomicLong();
+	private AtomicLong dedicatedBytes = new AtomicLong();
+	private AtomicLong rawBytes = new AtomicLong();
+
+	/**
+	 * Where one value lives. Dedicated values carry their own buffer and
+	 * have a sizeClass of -1. length is the stored size; rawLength is the
+	 * size before compression.
+	 */
+	static final class Handle {
+		final int sizeClass;
+		final int slot;
+		final int length;
+		final int rawLength;
+		final boolean deflated;
+		final ByteBuffer dedicated;
+
+		Handle(int sizeClass, int slot, int length, int rawLength, boolean deflated, ByteBuffer dedicated) {
+			this.sizeClass = sizeClass;
+			this.slot = slot;
+			this.length = length;
+			this.rawLength = rawLength;
+			this.deflated = deflated;
+			this.dedicated = dedicated;
+		}
+	}
+
+	private static final class SizeClass {
+		final int slotSize;
+		final int slotsPerSlab;
+		volatile ByteBuffer[] slabs = new ByteBuffer[0];
+		int[] free = new int[16];
+		int freeCount = 0;
+		int fresh = 0; // slots ever handed out
+
+		SizeClass(int slotSize) {
+			this.slotSize = slotSize;
+			this.slotsPerSlab = SLAB_SIZE / slotSize;
+		}
+
+		synchronized int allocate() {
+			if (freeCount > 0)
+				return free[--freeCount];
+			if (fresh == slabs.length * slotsPerSlab) {
+				ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+				grown[slabs.length] = ByteBuffer.allocateDirect(SLAB_SIZE);
+				slabs = grown;
+			}
+			return fresh++;
+		}
+
+		synchronized void free(int slot) {
+			if (freeCount == free.length)
+				free = Arrays.copyOf(free, free.length * 2);
+			free[freeCount++] = slot;
+		}
+
+		/**
+		 * @return a view of the slab holding slot, positioned at the slot
+		 */
+		ByteBuffer locate(int slot) {
+			ByteBuffer buf = slabs[slot / slotsPerSlab].duplicate();
+			buf.position((slot % slotsPerSlab) * slotSize);
+			return buf;
+		}
+	}
+
+	/**
+	 * @param compressionThreshold smallest value, in bytes, worth trying
+	 *            to compress; 0 never compresses
+	 */
+	SlabAllocator(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+		int[] sizes = new int[64];
+		int count = 0;
+		for (int size = MIN_SLOT_SIZE; size <= SLAB_SIZE; size *= 2) {
+			sizes[count++] = size;
+			if (size + size / 2 <= SLAB_SIZE)
+				sizes[count++] = size + size / 2;
+		}
+		slotSizes = Arrays.copyOf(sizes, count);
+		classes = new SizeClass[count];
+		for (int i = 0; i < count; i++)
+			classes[i] = new SizeClass(slotSizes[i]);
+	}
+
+	/**
+	 * Copies value off the heap.
+	 * @return the handle to read and eventually free the copy with
+	 */
+	Handle allocate(String value) {
+		byte[] bytes = value.getBytes(KVLog.UTF8);
+		int rawLength = bytes.length;
+		boolean deflated = false;
+		if (compressionThreshold > 0 && rawLength >= compressionThreshold) {
+			byte[] compressed = ValueCodec.deflate(bytes);
+			if (compressed != null) {
+				bytes = compressed;
+				deflated = true;
+			}
+		}
+		Handle handle;
+		int c = Arrays.binarySearch(slotSizes, bytes.length);
+		if (c < 0)
+			c = -c - 1;
+		if (c == classes.length) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+			buf.put(bytes);
+			dedicatedBytes.addAndGet(bytes.length);
+			handle = new Handle(-1, 0, bytes.length, rawLength, deflated, buf);
+		} else {
+			int slot = classes[c].allocate();
+			classes[c].locate(slot).put(bytes);
+			handle = new Handle(c, slot, bytes.length, rawLength, deflated, null);
+		}
+		liveValues.incrementAndGet();
+		usedBytes.addAndGet(bytes.length);
+		rawBytes.addAndGet(rawLength);
+		return handle;
+	}
+
+	/**
+	 * @throws IOException if a compressed value does not inflate, which
+	 *             means the handle was freed and its slot reused
+	 */
+	String read(Handle handle) throws IOException {
+		ByteBuffer buf;
+		if (handle.dedicated != null) {
+			buf = handle.dedicated.duplicate();
+			buf.position(0);
+		} else {
+			buf = classes[handle.sizeClass].locate(handle.slot);
+		}
+		byte[] bytes = new byte[handle.length];
+		buf.get(bytes);
+		if (handle.deflated)
+			bytes = ValueCodec.inflate(bytes, 0, bytes.length, handle.rawLength);
+		return new String(bytes, KVLog.UTF8);
+	}
+
+	/**
+	 * Returns the handle's memory for reuse. Each handle must be freed at
+	 * most once.
+	 */
+	void free(Handle handle) {
+		if (handle.dedicated != null)
+			dedicatedBytes.addAndGet(-handle.length);
+		else
+			classes[handle.sizeClass].free(handle.slot);
+		liveValues.decrementAndGet();
+		usedBytes.addAndGet(-handle.length);
+		rawBytes.addAndGet(-handle.rawLength);
+	}
+
+	long getLiveValues() {
+		return liveValues.get();
+	}
+
+	/**
+	 * @return bytes of value data currently stored
+	 */
+	long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return bytes the stored values would take uncompressed
+	 */
+	long getRawBytes() {
+		return rawBytes.get();
+	}
+
+	/**
+	 * @return direct memory held, in slabs and dedicated buffers
+	 */
+	long getReservedBytes() {
+		long reserved = dedicatedBytes.get();
+		for (SizeClass sizeClass : classes)
+			reserved += (long) sizeClass.slabs.length * SLAB_SIZE;
+		return reserved;
+	}
+
+	String stats() {
+		return String.format("offHeapValues=%d usedBytes=%d rawBytes=%d reservedBytes=%d",
+				getLiveValues(), getUsedBytes(), getRawBytes(), getReservedBytes());
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Read/write throughput of the transient store's map from 1 to 64 threads
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how the throughput of a mix of gets and puts scales with the
+ * number of threads, for the Hashtable the transient KVStore used to be
+ * built on, the ConcurrentHashMap that replaced it, and KVStore itself
+ * without the AutoGrader delays. Each thread picks random keys of a
+ * preloaded key set and does a put for writePercent of its operations.
+ * Scaling only shows on a host with as many cores as threads.
+ */
+public class StoreScalingBenchmark {
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	/**
+	 * The operations under test, so maps and KVStore run the same loop.
+	 */
+	private interface Target {
+		void get(String key) throws KVException;
+
+		void put(String key, String value) throws KVException;
+	}
+
+	private static Target map(final Map<String, String> map) {
+		return new Target() {
+			public void get(String key) {
+				map.get(key);
+			}
+
+			public void put(String key, String value) {
+				map.put(key, value);
+			}
+		};
+	}
+
+	private static Target store(final KVStore store) {
+		return new Target() {
+			public void get(String key) throws KVException {
+				store.lookup(key);
+			}
+
+			public void put(String key, String value) throws KVException {
+				store.put(key, value);
+			}
+		};
+	}
+
+	/**
+	 * @return operations per second of threads running the mix for millis
+	 */
+	private static double run(final Target target, final String[] keys, int threads, final int writePercent,
+			long millis) throws InterruptedException {
+		final AtomicLong ops = new AtomicLong();
+		final long deadline = System.nanoTime() + millis * 1000000;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int seed = i;
+			workers[i] = new Thread("benchmark " + i) {
+				public void run() {
+					Random random = new Random(seed);
+					long done = 0;
+					try {
+						while ((done & 1023) != 0 || System.nanoTime() < deadline) {
+							String key = keys[random.nextInt(keys.length)];
+							if (random.nextInt(100) < writePercent)
+								target.put(key, key);
+							else
+								target.get(key);
+							done++;
+						}
+					} catch (KVException e) {
+						System.err.println(e.getMsg().getMessage());
+					}
+					ops.addAndGet(done);
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		return ops.get() / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * @param args
+	 *            [millisPerRun [writePercent [keys]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+		int writePercent = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int numKeys = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		AutoGrader.setDelays(0, 0);
+		String[] keys = new String[numKeys];
+		for (int i = 0; i < numKeys; i++)
+			keys[i] = "key" + i;
+		String[] names = { "Hashtable", "ConcurrentHashMap", "KVStore" };
+		Target[] targets = { map(new Hashtable<String, String>()), map(new ConcurrentHashMap<String, String>()),
+				store(new KVStore()) };
+		for (Target target : targets) {
+			for (String key : keys)
+				target.put(key, key);
+		}
+
+		System.out.println(Runtime.getRuntime().availableProcessors() + " processors, " + writePercent + "% puts");
+		StringBuilder header = new StringBuilder(String.format("%8s", "threads"));
+		for (String name : names)
+			header.append(String.format(" %18s", name));
+		System.out.println(header + "   (Mops/s)");
+		for (int threads : THREADS) {
+			StringBuilder line = new StringBuilder(String.format("%8d", threads));
+			for (Target target : targets)
+				line.append(String.format(" %18.2f", run(target, keys, threads, writePercent, millis) / 1e6));
+			System.out.println(line);
+		}
+	}
+}
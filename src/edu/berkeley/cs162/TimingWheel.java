@@ -0,0 +1,161 @@
+/**
+ * Hierarchical timing wheel for key expiry
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel. Time is counted in ticks; each level has
+ * SLOTS slots, and a slot of level L covers SLOTS^L ticks. A timer goes
+ * into the lowest level whose current revolution still contains its
+ * deadline. Whenever a level wraps around, the next slot of the level above
+ * is emptied and its timers are placed again, one level lower or more.
+ * Adding a timer is O(1), and each timer moves down at most LEVELS - 1
+ * times before it fires, however many timers there are.
+ *
+ * Timers cannot be taken out. Owners cancel them lazily by checking, when
+ * a timer fires, whether it is still the one that counts.
+ */
+class TimingWheel {
+	static final int SLOT_BITS = 6;
+	static final int SLOTS = 1 << SLOT_BITS;
+	static final int LEVELS = 5;
+
+	/**
+	 * Something to be done once its deadline tick has passed.
+	 */
+	static abstract class Timer {
+		final long deadline;
+
+		Timer(long deadline) {
+			this.deadline = deadline;
+		}
+	}
+
+	private ArrayList<ArrayList<Timer>> slots = null; // level * SLOTS + slot
+	private long current = 0;
+	private int size = 0;
+
+	/**
+	 * @param start the tick the wheel starts at
+	 */
+	TimingWheel(long start) {
+		current = start;
+		slots = new ArrayList<ArrayList<Timer>>(LEVELS * SLOTS);
+		for (int i = 0; i < LEVELS * SLOTS; i++)
+			slots.add(new ArrayList<Timer>());
+	}
+
+	/**
+	 * Schedules timer. A deadline that has already passed fires on the
+	 * next tick.
+	 */
+	synchronized void add(Timer timer) {
+		place(timer, current + 1);
+		size++;
+	}
+
+	/**
+	 * Moves the wheel forward to tick now.
+	 * @return the timers whose deadlines have passed, in no particular order
+	 */
+	synchronized List<Timer> advance(long now) {
+		ArrayList<Timer> expired = new ArrayList<Timer>();
+		while (current < now) {
+			current++;
+			// empty the slots of higher levels that begin at this tick,
+			// highest first so their timers can trickle down in one go
+			int top = 0;
+			while (top + 1 < LEVELS && (current & ((1L << (SLOT_BITS * (top + 1))) - 1)) == 0)
+				top++;
+			for (int level = top; level > 0; level--)
+				cascade(level);
+			ArrayList<Timer> slot = slots.get((int) (current & (SLOTS - 1)));
+			if (slot.isEmpty())
+				continue;
+			ArrayList<Timer> due = new ArrayList<Timer>(slot);
+			slot.clear();
+			for (Timer timer : due) {
+				if (timer.deadline <= current) {
+					expired.add(timer);
+					size--;
+				} else {
+					place(timer, current + 1); // parked beyond the top level's reach
+				}
+			}
+		}
+		return expired;
+	}
+
+	synchronized long getCurrentTick() {
+		return current;
+	}
+
+	/**
+	 * @return timers waiting, including ones their owners have cancelled
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	private void cascade(int level) {
+		ArrayList<Timer> slot = slots.get(level * SLOTS + (int) ((current >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+		if (slot.isEmpty())
+			return;
+		ArrayList<Timer> moving = new ArrayList<Timer>(slot);
+		slot.clear();
+		// the slot for this tick has not been run yet, so it can take timers
+		for (Timer timer : moving)
+			place(timer, current);
+	}
+
+	/**
+	 * Puts timer into the lowest level whose revolution in progress
+	 * reaches its deadline, or earliest if that is later.
+	 */
+	private void place(Timer timer, long earliest) {
+		long deadline = Math.max(timer.deadline, earliest);
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = SLOT_BITS * (level + 1);
+			if ((deadline >>> shift) == (current >>> shift)) {
+				int slot = (int) ((deadline >>> (SLOT_BITS * level)) & (SLOTS - 1));
+				slots.get(level * SLOTS + slot).add(timer);
+				return;
+			}
+		}
+		// too far out for the wheel: park in the top level slot that comes
+		// around last, and place again from there
+		int top = LEVELS - 1;
+		int slot = (int) (((current >>> (SLOT_BITS * top)) - 1) & (SLOTS - 1));
+		slots.get(top * SLOTS + slot).add(timer);
+	}
+}
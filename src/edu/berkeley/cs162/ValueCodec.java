@@ -0,0 +1,115 @@
+/**
+ * Deflate compression of large values for the stores and the wire
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values with DEFLATE at its fastest level. A compressed value
+ * is the raw length as a 4 byte int followed by the deflate stream, so the
+ * reader can size its buffer exactly and refuse oversized input up front.
+ *
+ * Compression is only kept when it saves at least an eighth of the bytes;
+ * callers store the value raw otherwise. Each thread keeps its own
+ * Deflater and Inflater, since creating them allocates native memory.
+ */
+class ValueCodec {
+	/**
+	 * Values shorter than this many bytes are not worth compressing.
+	 */
+	static final int DEFAULT_THRESHOLD = 4096;
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/**
+	 * @return the compressed form of raw, or null if it would not be at
+	 *         least an eighth smaller
+	 */
+	static byte[] deflate(byte[] raw) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] out = new byte[4 + raw.length - raw.length / 8];
+		ByteBuffer.wrap(out).putInt(raw.length);
+		int length = 4;
+		while (!deflater.finished()) {
+			if (length == out.length)
+				return null;
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		return Arrays.copyOf(out, length);
+	}
+
+	/**
+	 * Reverses deflate.
+	 * @param maxLength largest raw length to accept
+	 * @throws IOException if the data is corrupt or would inflate past maxLength
+	 */
+	static byte[] inflate(byte[] data, int offset, int length, int maxLength) throws IOException {
+		if (length < 4)
+			throw new IOException("Truncated compressed value");
+		int rawLength = ByteBuffer.wrap(data, offset, 4).getInt();
+		if (rawLength < 0 || rawLength > maxLength)
+			throw new IOException("Compressed value too large: " + rawLength + " bytes");
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data, offset + 4, length - 4);
+		byte[] raw = new byte[rawLength];
+		int n = 0;
+		try {
+			while (n < rawLength) {
+				int read = inflater.inflate(raw, n, rawLength - n);
+				if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Truncated compressed value");
+				n += read;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed value: " + e.getMessage());
+		}
+		return raw;
+	}
+}
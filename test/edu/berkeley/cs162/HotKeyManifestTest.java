@@ -0,0 +1,139 @@
+/**
+ * Round-trip tests for HotKeyManifest
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HotKeyManifestTest {
+	private File file = null;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("hotkeys", ".manifest");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	@Test
+	public void roundTripsKeysInOrder() throws IOException {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 10000; i++)
+			keys.add("user:" + (i * 7919 % 10000) + ":profile");
+		keys.add("");
+		keys.add("a");
+		keys.add("<&>\n\u00e9\u65e5\u672c");
+		List<String> read = roundTrip(keys);
+		Collections.sort(keys);
+		assertEquals(keys, read);
+	}
+
+	@Test
+	public void roundTripsEmptyManifest() throws IOException {
+		assertEquals(Collections.<String> emptyList(), roundTrip(new ArrayList<String>()));
+	}
+
+	@Test
+	public void roundTripsLongestKeys() throws IOException {
+		StringBuilder prefix = new StringBuilder();
+		for (int i = 0; i < 0xffff - 1; i++)
+			prefix.append('k');
+		List<String> keys = Arrays.asList(prefix + "1", prefix + "2", prefix + "3");
+		assertEquals(keys, roundTrip(keys));
+	}
+
+	@Test
+	public void rejectsKeyTooLongAndKeepsOldManifest() throws IOException {
+		HotKeyManifest.write(file, Arrays.asList("old"));
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < 0x10000; i++)
+			key.append('k');
+		try {
+			HotKeyManifest.write(file, Arrays.asList("a", key.toString()));
+			fail("wrote a key over 64 KB");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(Arrays.asList("old"), HotKeyManifest.read(file));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void replacesOldManifest() throws IOException {
+		HotKeyManifest.write(file, Arrays.asList("old1", "old2", "old3"));
+		assertEquals(Arrays.asList("new"), roundTrip(Arrays.asList("new")));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTruncatedManifest() throws IOException {
+		HotKeyManifest.write(file, Arrays.asList("alpha", "beta", "gamma"));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 2);
+		} finally {
+			raf.close();
+		}
+		HotKeyManifest.read(file);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherFiles() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.write("not a manifest at all".getBytes(KVLog.UTF8));
+		} finally {
+			raf.close();
+		}
+		HotKeyManifest.read(file);
+	}
+
+	private List<String> roundTrip(List<String> keys) throws IOException {
+		HotKeyManifest.write(file, keys);
+		return HotKeyManifest.read(file);
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * Tests for resizing a KVCache while it is in use
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVCacheResizeTest {
+	private static final Pattern NUM_SETS = Pattern.compile("numSets=(\\d+)");
+
+	@Before
+	public void setUp() {
+		AutoGrader.setDelays(0, 0);
+	}
+
+	@Test
+	public void roundsSetCountsToStripes() throws InterruptedException {
+		KVCache cache = new KVCache(100, 10);
+		assertEquals(128, numSets(cache));
+		resize(cache, 7);
+		assertEquals(64, numSets(cache));
+		resize(cache, 1000);
+		assertEquals(1024, numSets(cache));
+		KVCache small = new KVCache(10, 10);
+		assertEquals(16, numSets(small));
+		resize(small, 3);
+		assertEquals(8, numSets(small));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNoSets() {
+		new KVCache(100, 10).resize(0);
+	}
+
+	@Test
+	public void keepsEntriesAcrossResizes() throws InterruptedException {
+		// room for every key in the smallest table, so nothing is evicted
+		KVCache cache = new KVCache(100, 64);
+		for (int i = 0; i < 1000; i++)
+			put(cache, "key" + i, "value" + i);
+		for (int numSets : new int[] { 1000, 100, 64, 320 }) {
+			resize(cache, numSets);
+			for (int i = 0; i < 1000; i++)
+				assertEquals("value" + i, cache.read("key" + i));
+		}
+	}
+
+	@Test
+	public void readsAndWritesDuringResize() throws InterruptedException {
+		final KVCache cache = new KVCache(100, 64);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Thread[] workers = new Thread[8];
+		for (int t = 0; t < workers.length; t++) {
+			final int id = t;
+			workers[t] = new Thread() {
+				public void run() {
+					// each worker owns its keys, so it knows what they must read as
+					String[] latest = new String[100];
+					for (int round = 0; !stop.get() && failure.get() == null; round++) {
+						int k = round % latest.length;
+						String key = "worker" + id + "key" + k;
+						if (round % 7 == 3) {
+							Lock lock = cache.getWriteLock(key);
+							lock.lock();
+							try {
+								cache.del(key);
+							} finally {
+								lock.unlock();
+							}
+							latest[k] = null;
+						} else if (round % 3 == 0) {
+							latest[k] = "value" + round;
+							put(cache, key, latest[k]);
+						} else {
+							String value = cache.read(key);
+							if (value == null ? latest[k] != null : !value.equals(latest[k]))
+								failure.compareAndSet(null, key + " read " + value + " after " + latest[k]);
+						}
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (int numSets : new int[] { 1024, 64, 100, 7, 320, 128 })
+			resize(cache, numSets);
+		stop.set(true);
+		for (Thread worker : workers)
+			worker.join();
+		assertEquals(null, failure.get());
+		assertTrue(cache.stats().contains("resizes=6"));
+	}
+
+	private static void put(KVCache cache, String key, String value) {
+		Lock lock = cache.getWriteLock(key);
+		lock.lock();
+		try {
+			cache.put(key, value);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Resizes cache and waits for every set to have moved.
+	 */
+	private static void resize(KVCache cache, int numSets) throws InterruptedException {
+		while (!cache.resize(numSets))
+			Thread.sleep(1);
+		while (cache.isResizing())
+			Thread.sleep(1);
+	}
+
+	private static int numSets(KVCache cache) {
+		Matcher m = NUM_SETS.matcher(cache.stats());
+		assertTrue(m.find());
+		return Integer.parseInt(m.group(1));
+	}
+}
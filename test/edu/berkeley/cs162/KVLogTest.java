@@ -0,0 +1,141 @@
+/**
+ * Tests for recovery of KVLog from a partially written segment
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVLogTest {
+	private File dir = null;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("kvlog", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void recoversFromTornRecord() throws IOException {
+		writeKeys(100);
+		ByteBuffer record = KVLog.encode(KVLog.PUT, "torn".getBytes(KVLog.UTF8), "value".getBytes(KVLog.UTF8));
+		append(record.array(), record.limit() - 3);
+		checkRecovered(100);
+	}
+
+	@Test
+	public void recoversFromTornHeader() throws IOException {
+		writeKeys(100);
+		append(new byte[] { 1, 2, 3, 4, 5, 6 }, 6);
+		checkRecovered(100);
+	}
+
+	@Test
+	public void recoversFromCorruptRecord() throws IOException {
+		writeKeys(100);
+		ByteBuffer record = KVLog.encode(KVLog.PUT, "torn".getBytes(KVLog.UTF8), "value".getBytes(KVLog.UTF8));
+		byte[] bytes = record.array();
+		bytes[record.limit() - 1] ^= 0x55;
+		append(bytes, record.limit());
+		checkRecovered(100);
+	}
+
+	private void writeKeys(int count) throws IOException {
+		KVLog log = new KVLog(dir);
+		try {
+			for (int i = 0; i < count; i++)
+				log.put("key" + i, "value" + i);
+			log.del("key0");
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Appends the first length bytes of tail to the newest segment, as a
+	 * crash in the middle of a write would leave it.
+	 */
+	private void append(byte[] tail, int length) throws IOException {
+		File newest = null;
+		for (File file : dir.listFiles()) {
+			if (newest == null || file.getName().compareTo(newest.getName()) > 0)
+				newest = file;
+		}
+		FileOutputStream out = new FileOutputStream(newest, true);
+		try {
+			out.write(tail, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Checks that the intact records survived and that the torn tail was cut
+	 * off, so a record written after recovery is not lost behind it.
+	 */
+	private void checkRecovered(int count) throws IOException {
+		KVLog log = new KVLog(dir);
+		try {
+			assertEquals(count - 1, log.size());
+			assertNull(log.get("key0"));
+			for (int i = 1; i < count; i++)
+				assertEquals("value" + i, log.get("key" + i));
+			assertNull(log.get("torn"));
+			log.put("after", "recovery");
+		} finally {
+			log.close();
+		}
+		log = new KVLog(dir);
+		try {
+			assertEquals(count, log.size());
+			assertEquals("recovery", log.get("after"));
+			assertEquals("value" + (count - 1), log.get("key" + (count - 1)));
+		} finally {
+			log.close();
+		}
+	}
+}
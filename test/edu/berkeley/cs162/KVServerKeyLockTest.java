@@ -0,0 +1,187 @@
+/**
+ * Tests for the ordering of KVServer's key locks and cache set locks
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVServerKeyLockTest {
+	private TestStore store = null;
+	private KVCache cache = null;
+	private KVServer server = null;
+	// first exception thrown on a thread started by start
+	private AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+	@Before
+	public void setUp() {
+		AutoGrader.setDelays(0, 0);
+		store = new TestStore();
+		// one set, so every key shares a set lock
+		cache = new KVCache(1, 4);
+		server = new KVServer(cache, store);
+	}
+
+	@After
+	public void tearDown() {
+		// lets threads of a failed test finish
+		store.releaseWrites();
+	}
+
+	@Test
+	public void storeWriteDoesNotHoldTheSetLock() throws Exception {
+		store.put("stored", "value");
+		store.holdWrites();
+		Thread writer = start(new Call() {
+			public void call() throws KVException {
+				server.put("a", "1");
+			}
+		});
+		awaitHeld(1);
+
+		Lock setLock = cache.getWriteLock("b");
+		assertTrue(setLock.tryLock());
+		setLock.unlock();
+		// a miss of another key loads and fills the same set meanwhile
+		assertEquals("value", server.lookup("stored"));
+		assertNull(server.lookup("missing"));
+		assertTrue(writer.isAlive());
+
+		store.releaseWrites();
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertNull(error.get());
+		assertEquals("1", server.lookup("a"));
+	}
+
+	@Test
+	public void missOfAKeyBeingWrittenWaitsForTheWrite() throws Exception {
+		store.holdWrites();
+		Thread writer = start(new Call() {
+			public void call() throws KVException {
+				server.put("key", "new");
+			}
+		});
+		awaitHeld(1);
+		final AtomicReference<String> read = new AtomicReference<String>();
+		Thread reader = start(new Call() {
+			public void call() throws KVException {
+				read.set(server.lookup("key"));
+			}
+		});
+		reader.join(200);
+		assertTrue(reader.isAlive()); // waits for the put's key lock
+
+		store.releaseWrites();
+		writer.join(10000);
+		reader.join(10000);
+		assertFalse(reader.isAlive());
+		assertNull(error.get());
+		assertEquals("new", read.get());
+		assertEquals(0, store.lookups.get());
+	}
+
+	@Test
+	public void mixedTrafficOnOneSetKeepsEachKeysLatestWrite() throws Exception {
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Thread[] workers = new Thread[8];
+		for (int t = 0; t < workers.length; t++) {
+			final int id = t;
+			workers[t] = start(new Call() {
+				public void call() throws KVException {
+					// each worker owns its keys, so it knows what they must read as
+					Random random = new Random(id);
+					String[] latest = new String[8];
+					for (int i = 0; i < 5000 && failure.get() == null; i++) {
+						int k = random.nextInt(latest.length);
+						String key = "worker" + id + "key" + k;
+						int op = random.nextInt(4);
+						if (op == 0) {
+							server.del(key);
+							latest[k] = null;
+						} else if (op == 1) {
+							latest[k] = "value" + i;
+							server.put(key, latest[k]);
+						} else {
+							String value = server.lookup(key);
+							if (value == null ? latest[k] != null : !value.equals(latest[k]))
+								failure.compareAndSet(null, key + " read " + value + " after " + latest[k]);
+						}
+					}
+				}
+			});
+		}
+		for (Thread worker : workers) {
+			worker.join(30000);
+			assertFalse("deadlocked", worker.isAlive());
+		}
+		assertNull(error.get());
+		assertNull(failure.get());
+	}
+
+	private interface Call {
+		void call() throws KVException;
+	}
+
+	/**
+	 * Runs call on a daemon thread, recording what it throws in error.
+	 */
+	private Thread start(final Call call) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					call.call();
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private void awaitHeld(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (store.held.get() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertEquals(count, store.held.get());
+	}
+}
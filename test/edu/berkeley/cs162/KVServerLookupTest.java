@@ -0,0 +1,190 @@
+/**
+ * Tests for KVServer's coalesced loads of cache misses
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVServerLookupTest {
+	private TestStore store = null;
+	private KVServer server = null;
+	private Thread[] lookups = new Thread[0];
+
+	@Before
+	public void setUp() throws KVException {
+		AutoGrader.setDelays(0, 0);
+		store = new TestStore();
+		store.put("key", "old");
+		server = new KVServer(new KVCache(100, 10), store);
+	}
+
+	@After
+	public void tearDown() {
+		// lets threads of a failed test finish
+		store.releaseLookups();
+		store.releaseWrites();
+	}
+
+	@Test
+	public void concurrentMissesShareOneLoad() throws Exception {
+		store.holdLookups();
+		AtomicReferenceArray<Object> results = lookupAll("key", 8);
+		awaitStat("coalesced", 7);
+		assertEquals(1, store.lookups.get());
+
+		store.releaseLookups();
+		joinAll();
+		for (int i = 0; i < results.length(); i++)
+			assertEquals("old", results.get(i));
+		assertEquals("old", server.lookup("key"));
+		assertEquals(1, store.lookups.get());
+		assertEquals(1, stat("fills"));
+	}
+
+	@Test
+	public void concurrentMissesOfAnAbsentKeyShareOneLoad() throws Exception {
+		store.holdLookups();
+		AtomicReferenceArray<Object> results = lookupAll("missing", 4);
+		awaitStat("coalesced", 3);
+		store.releaseLookups();
+		joinAll();
+		for (int i = 0; i < results.length(); i++)
+			assertNull(results.get(i));
+		assertEquals(1, store.lookups.get());
+	}
+
+	@Test
+	public void failedLoadIsSharedButNotCached() throws Exception {
+		store.holdLookups();
+		store.setFailing(true);
+		AtomicReferenceArray<Object> results = lookupAll("key", 4);
+		awaitStat("coalesced", 3);
+		store.releaseLookups();
+		joinAll();
+		for (int i = 0; i < results.length(); i++)
+			assertTrue(results.get(i) instanceof KVException);
+		assertEquals(1, stat("failedLoads"));
+
+		store.setFailing(false);
+		assertEquals("old", server.lookup("key"));
+		assertEquals(2, store.lookups.get());
+		assertEquals(0, stat("inFlight"));
+	}
+
+	@Test
+	public void racingPutIsNotOverwrittenByALoad() throws Exception {
+		// the load has read "old" from the store when the put comes in
+		store.holdLookups();
+		AtomicReferenceArray<Object> loaded = lookupAll("key", 1);
+		while (store.lookups.get() == 0)
+			Thread.sleep(1);
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					server.put("key", "new");
+				} catch (KVException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		writer.join(200);
+		assertTrue(writer.isAlive()); // waits for the load's key lock
+
+		store.releaseLookups();
+		joinAll();
+		writer.join();
+		assertEquals("old", loaded.get(0));
+		assertEquals("new", server.lookup("key"));
+		assertEquals("new", store.peek("key"));
+		assertEquals(1, store.lookups.get());
+	}
+
+	/**
+	 * Starts count threads that each look key up, storing the value or the
+	 * exception each gets.
+	 */
+	private AtomicReferenceArray<Object> lookupAll(final String key, int count) {
+		final AtomicReferenceArray<Object> results = new AtomicReferenceArray<Object>(count);
+		lookups = new Thread[count];
+		for (int i = 0; i < count; i++) {
+			final int id = i;
+			lookups[i] = new Thread() {
+				public void run() {
+					try {
+						results.set(id, server.lookup(key));
+					} catch (KVException e) {
+						results.set(id, e);
+					}
+				}
+			};
+			lookups[i].setDaemon(true);
+			lookups[i].start();
+		}
+		return results;
+	}
+
+	private void joinAll() throws InterruptedException {
+		for (Thread lookup : lookups) {
+			lookup.join(10000);
+			assertFalse(lookup.isAlive());
+		}
+	}
+
+	/**
+	 * Waits for a read-through counter to reach value, so that the threads
+	 * counted in it are known to be waiting on a load.
+	 */
+	private void awaitStat(String name, long value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (stat(name) < value && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertEquals(value, stat(name));
+	}
+
+	private long stat(String name) {
+		String stats = server.readThroughStats();
+		Matcher m = Pattern.compile("\\b" + name + "=(\\d+)").matcher(stats);
+		assertTrue(stats, m.find());
+		return Long.parseLong(m.group(1));
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * Tests for KVServer's write-back mode
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVServerWriteBackTest {
+	// long enough that the flusher stays idle unless the dirty bound is near
+	private static final long IDLE_INTERVAL_MILLIS = 60 * 1000;
+
+	private TestStore store = null;
+
+	@Before
+	public void setUp() {
+		AutoGrader.setDelays(0, 0);
+		store = new TestStore();
+	}
+
+	@After
+	public void tearDown() {
+		// lets threads of a failed test finish
+		store.releaseWrites();
+	}
+
+	@Test
+	public void coalescesWritesOfAKey() throws KVException {
+		KVServer server = new KVServer(new KVCache(100, 10), store);
+		server.enableWriteBack(1 << 20, IDLE_INTERVAL_MILLIS);
+		for (int i = 0; i < 100; i++)
+			server.put("key", "value" + i);
+		server.put("gone", "value");
+		server.del("gone");
+		assertTrue(store.writes.isEmpty());
+		assertEquals("value99", server.lookup("key"));
+
+		server.flush();
+		assertEquals(2, store.writes.size());
+		assertTrue(store.writes.contains("put key value99"));
+		assertTrue(store.writes.contains("del gone"));
+		assertEquals("value99", store.peek("key"));
+		assertEquals(100, stat(server.writeBackStats(), "coalesced"));
+		assertEquals(0, stat(server.writeBackStats(), "dirtyBytes"));
+	}
+
+	@Test
+	public void readsUnflushedWritesEvictedFromTheCache() throws KVException {
+		// a single entry, so each put evicts the last
+		KVServer server = new KVServer(new KVCache(1, 1), store);
+		server.enableWriteBack(1 << 20, IDLE_INTERVAL_MILLIS);
+		server.put("a", "1");
+		server.put("b", "2");
+		assertEquals("1", server.lookup("a"));
+		server.del("a");
+		assertNull(server.lookup("a"));
+		assertEquals(0, store.lookups.get());
+
+		server.flush();
+		assertNull(store.peek("a"));
+		assertEquals("2", store.peek("b"));
+	}
+
+	@Test
+	public void flushesWritesOfAKeyInOrder() throws Exception {
+		final KVServer server = new KVServer(new KVCache(100, 10), store);
+		server.enableWriteBack(1 << 20, 1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int[] written = new int[4];
+		final int[][] latest = new int[written.length][20];
+		// the last write of a key in a phase is the one a lost update would
+		// drop, so each phase ends with a flush and a look at the store
+		for (int phase = 0; phase < 10; phase++) {
+			// keys are rewritten while the flusher is storing them
+			store.setWriteDelay(1);
+			final long stopNanos = System.nanoTime() + 50 * 1000000L;
+			Thread[] writers = new Thread[written.length];
+			for (int t = 0; t < writers.length; t++) {
+				final int id = t;
+				writers[t] = new Thread() {
+					public void run() {
+						try {
+							for (int i = written[id]; System.nanoTime() < stopNanos; i++) {
+								server.put("writer" + id + "key" + i % 20, "" + i);
+								latest[id][i % 20] = i;
+								written[id] = i + 1;
+							}
+						} catch (Throwable e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+				};
+				writers[t].start();
+			}
+			for (Thread writer : writers)
+				writer.join();
+			assertNull(failure.get());
+			store.setWriteDelay(0);
+			server.flush();
+			for (int t = 0; t < writers.length; t++) {
+				for (int k = 0; k < 20; k++) {
+					if (written[t] > k)
+						assertEquals("" + latest[t][k], store.peek("writer" + t + "key" + k));
+				}
+			}
+		}
+
+		Map<String, Integer> last = new HashMap<String, Integer>();
+		for (String write : new ArrayList<String>(store.writes)) {
+			String[] parts = write.split(" ");
+			int value = Integer.parseInt(parts[2]);
+			Integer before = last.put(parts[1], value);
+			if (before != null && before >= value)
+				fail(parts[1] + " was flushed " + value + " after " + before);
+		}
+	}
+
+	@Test
+	public void stallsWritersAtTheDirtyBound() throws Exception {
+		final KVServer server = new KVServer(new KVCache(100, 10), store);
+		final long maxDirtyBytes = 1024;
+		server.enableWriteBack(maxDirtyBytes, 1);
+		store.holdWrites();
+		final List<Long> dirtyBytes = new ArrayList<Long>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 50; i++) {
+						server.put("key" + i, "value" + i);
+						synchronized (dirtyBytes) {
+							dirtyBytes.add(stat(server.writeBackStats(), "dirtyBytes"));
+						}
+					}
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		writer.join(300);
+		assertTrue(writer.isAlive());
+		assertTrue(stat(server.writeBackStats(), "stalls") > 0);
+
+		store.releaseWrites();
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertNull(failure.get());
+		synchronized (dirtyBytes) {
+			assertEquals(50, dirtyBytes.size());
+			for (long bytes : dirtyBytes)
+				assertTrue(bytes <= maxDirtyBytes);
+		}
+		server.flush();
+		assertEquals(50, store.size());
+	}
+
+	@Test
+	public void keepsWritesTheStoreFails() throws KVException {
+		KVServer server = new KVServer(new KVCache(100, 10), store);
+		server.enableWriteBack(1 << 20, IDLE_INTERVAL_MILLIS);
+		server.put("key", "value");
+		store.setFailing(true);
+		try {
+			server.flush();
+			fail("flush succeeded without the store");
+		} catch (KVException e) {
+			// expected
+		}
+		assertEquals("value", server.lookup("key"));
+		assertEquals(1, stat(server.writeBackStats(), "dirtyKeys"));
+
+		store.setFailing(false);
+		server.flush();
+		assertEquals("value", store.peek("key"));
+		assertEquals(0, stat(server.writeBackStats(), "dirtyKeys"));
+	}
+
+	static long stat(String stats, String name) {
+		Matcher m = Pattern.compile("\\b" + name + "=(\\d+)").matcher(stats);
+		assertTrue(stats, m.find());
+		return Long.parseLong(m.group(1));
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Round-trip tests for the KVSnapshot format
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVSnapshotTest {
+	private File snap = null;
+	private File xml = null;
+	private File copy = null;
+
+	@Before
+	public void setUp() throws IOException {
+		snap = File.createTempFile("kvsnapshot", ".snap");
+		xml = File.createTempFile("kvsnapshot", ".xml");
+		copy = File.createTempFile("kvsnapshot", ".snap");
+	}
+
+	@After
+	public void tearDown() {
+		snap.delete();
+		xml.delete();
+		copy.delete();
+	}
+
+	@Test
+	public void roundTripsPairs() throws Exception {
+		Map<String, String> pairs = samplePairs();
+		write(snap, pairs);
+		check(snap, pairs);
+	}
+
+	@Test
+	public void roundTripsEmptySnapshot() throws Exception {
+		Map<String, String> pairs = new TreeMap<String, String>();
+		write(snap, pairs);
+		check(snap, pairs);
+	}
+
+	@Test
+	public void roundTripsThroughXML() throws Exception {
+		Map<String, String> pairs = samplePairs();
+		write(snap, pairs);
+		assertEquals(pairs.size(), KVSnapshot.toXML(snap, xml));
+		assertEquals(pairs.size(), KVSnapshot.fromXML(xml, copy));
+		check(copy, pairs);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTruncatedSnapshot() throws Exception {
+		write(snap, samplePairs());
+		RandomAccessFile file = new RandomAccessFile(snap, "rw");
+		try {
+			file.setLength(file.length() - 1);
+		} finally {
+			file.close();
+		}
+		new KVSnapshot(snap).close();
+	}
+
+	/**
+	 * @return pairs spanning several blocks, with values that need escaping
+	 *         in XML, non-ASCII text, an empty value and one larger than a
+	 *         block
+	 */
+	private static Map<String, String> samplePairs() {
+		TreeMap<String, String> pairs = new TreeMap<String, String>();
+		for (int i = 0; i < 5000; i++)
+			pairs.put("key" + i, "value" + i);
+		pairs.put("<tag attr=\"x\">&amp;", "</Value>\t&lt;'\"");
+		pairs.put("caf\u00e9 \u65e5\u672c", "\u00fcber \u20ac \ud83d\ude00");
+		pairs.put("empty", "");
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 200000; i++)
+			big.append((char) ('a' + i % 26));
+		pairs.put("big", big.toString());
+		return pairs;
+	}
+
+	private static void write(File file, Map<String, String> pairs) throws IOException {
+		KVSnapshot.Builder builder = new KVSnapshot.Builder(file);
+		for (Map.Entry<String, String> pair : pairs.entrySet())
+			builder.add(pair.getKey(), pair.getValue());
+		builder.finish();
+	}
+
+	private static void check(File file, Map<String, String> pairs) throws IOException {
+		KVSnapshot snapshot = new KVSnapshot(file);
+		try {
+			assertEquals(pairs.size(), snapshot.size());
+			for (Map.Entry<String, String> pair : pairs.entrySet())
+				assertEquals(pair.getValue(), snapshot.get(pair.getKey()));
+			assertNull(snapshot.get("missing"));
+			TreeMap<String, String> read = new TreeMap<String, String>();
+			for (Iterator<String[]> entries = snapshot.iterator(); entries.hasNext();) {
+				String[] entry = entries.next();
+				assertNull(read.put(entry[0], entry[1]));
+			}
+			assertEquals(pairs, read);
+		} finally {
+			snapshot.close();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Tests for recovery of LSMStore from a partially written log
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LSMStoreTest {
+	private File dir = null;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("lsmstore", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void recoversFromTornLogRecord() throws Exception {
+		writeKeys(200);
+		ByteBuffer record = KVLog.encode(KVLog.PUT, "torn".getBytes(KVLog.UTF8), "value".getBytes(KVLog.UTF8));
+		appendToLog(record.array(), record.limit() - 2);
+		checkRecovered(200);
+	}
+
+	@Test
+	public void recoversFromCorruptLogRecord() throws Exception {
+		writeKeys(200);
+		ByteBuffer record = KVLog.encode(KVLog.DEL, "key1".getBytes(KVLog.UTF8), new byte[0]);
+		byte[] bytes = record.array();
+		bytes[0] ^= 0x55;
+		appendToLog(bytes, record.limit());
+		checkRecovered(200);
+	}
+
+	@Test
+	public void recoversFlushedTablesAndTornLog() throws Exception {
+		// a small memtable, so most keys are in tables by the time of the crash
+		LSMStore store = new LSMStore(dir.getPath(), 1024, 4);
+		try {
+			for (int i = 0; i < 200; i++)
+				store.put("key" + i, "value" + i);
+			store.del("key0");
+		} finally {
+			store.close();
+		}
+		appendToLog(new byte[] { 9, 9, 9, 9, 9 }, 5);
+		checkRecovered(200);
+	}
+
+	private void writeKeys(int count) throws KVException {
+		LSMStore store = new LSMStore(dir.getPath());
+		try {
+			for (int i = 0; i < count; i++)
+				store.put("key" + i, "value" + i);
+			store.del("key0");
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Appends the first length bytes of tail to the newest log, as a crash
+	 * in the middle of a write would leave it.
+	 */
+	private void appendToLog(byte[] tail, int length) throws IOException {
+		File newest = null;
+		long newestGen = -1;
+		for (File file : dir.listFiles()) {
+			String name = file.getName();
+			if (!name.startsWith("wal-") || !name.endsWith(".log"))
+				continue;
+			long gen = Long.parseLong(name.substring(4, name.length() - 4));
+			if (gen > newestGen) {
+				newest = file;
+				newestGen = gen;
+			}
+		}
+		assertNotNull(newest);
+		FileOutputStream out = new FileOutputStream(newest, true);
+		try {
+			out.write(tail, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Checks that the intact writes survived and that the store takes new
+	 * writes that survive another reopen.
+	 */
+	private void checkRecovered(int count) throws KVException {
+		LSMStore store = new LSMStore(dir.getPath());
+		try {
+			assertNull(store.lookup("key0"));
+			for (int i = 1; i < count; i++)
+				assertEquals("value" + i, store.lookup("key" + i));
+			assertNull(store.lookup("torn"));
+			store.put("after", "recovery");
+		} finally {
+			store.close();
+		}
+		store = new LSMStore(dir.getPath());
+		try {
+			assertEquals("recovery", store.lookup("after"));
+			assertEquals("value1", store.lookup("key1"));
+			assertEquals("value" + (count - 1), store.lookup("key" + (count - 1)));
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * An in-memory store for KVServer tests
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A store that logs the writes it is given, counts its lookups, and can be
+ * told to hold writes or lookups back until released, to slow writes
+ * down, or to fail them.
+ * A held lookup reads its value before it waits, as a slow store read that
+ * has already been answered would.
+ */
+class TestStore implements KeyValueInterface {
+	final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+	final AtomicInteger lookups = new AtomicInteger();
+	// operations waiting at a gate that is still held
+	final AtomicInteger held = new AtomicInteger();
+	private final ConcurrentHashMap<String, String> pairs = new ConcurrentHashMap<String, String>();
+	private volatile CountDownLatch writeGate = null;
+	private volatile CountDownLatch lookupGate = null;
+	private volatile boolean failing = false;
+	private volatile long writeDelayMillis = 0;
+
+	void holdWrites() {
+		writeGate = new CountDownLatch(1);
+	}
+
+	void releaseWrites() {
+		if (writeGate != null)
+			writeGate.countDown();
+	}
+
+	void holdLookups() {
+		lookupGate = new CountDownLatch(1);
+	}
+
+	void releaseLookups() {
+		if (lookupGate != null)
+			lookupGate.countDown();
+	}
+
+	/**
+	 * Makes every write take at least millis, which widens the windows in
+	 * which other threads act while a write is under way.
+	 */
+	void setWriteDelay(long millis) {
+		writeDelayMillis = millis;
+	}
+
+	void setFailing(boolean failing) {
+		this.failing = failing;
+	}
+
+	/**
+	 * @return the value of key, without counting a lookup
+	 */
+	String peek(String key) {
+		return pairs.get(key);
+	}
+
+	int size() {
+		return pairs.size();
+	}
+
+	public boolean put(String key, String value) throws KVException {
+		pass(writeGate);
+		delay(writeDelayMillis);
+		writes.add("put " + key + " " + value);
+		return pairs.put(key, value) != null;
+	}
+
+	public String get(String key) throws KVException {
+		String value = lookup(key);
+		if (value == null)
+			throw new KVException(new KVMessage("resp", KVMessage.NOT_FOUND));
+		return value;
+	}
+
+	public String lookup(String key) throws KVException {
+		lookups.incrementAndGet();
+		String value = pairs.get(key);
+		pass(lookupGate);
+		return value;
+	}
+
+	public void del(String key) throws KVException {
+		pass(writeGate);
+		delay(writeDelayMillis);
+		writes.add("del " + key);
+		pairs.remove(key);
+	}
+
+	public Iterator<String[]> scan(String start, String end, String prefix, int limit) throws KVException {
+		ArrayList<String[]> found = new ArrayList<String[]>();
+		for (Map.Entry<String, String> pair : new TreeMap<String, String>(pairs).entrySet()) {
+			String key = pair.getKey();
+			if ((start == null || key.compareTo(start) >= 0) && (end == null || key.compareTo(end) < 0)
+					&& (prefix == null || key.startsWith(prefix)) && (limit <= 0 || found.size() < limit))
+				found.add(new String[] { key, pair.getValue() });
+		}
+		return found.iterator();
+	}
+
+	private static void delay(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void pass(CountDownLatch gate) throws KVException {
+		if (gate != null && gate.getCount() > 0) {
+			held.incrementAndGet();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				held.decrementAndGet();
+			}
+		}
+		if (failing)
+			throw new KVException(new KVMessage("resp", "IO Error: Test store is failing"));
+	}
+}
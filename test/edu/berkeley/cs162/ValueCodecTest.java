@@ -0,0 +1,107 @@
+/**
+ * Round-trip tests for ValueCodec
+ *
+ * @author Mosharaf Chowdhury (http://www.mosharaf.com)
+ * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
+ *
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ValueCodecTest {
+
+	@Test
+	public void roundTripsCompressibleValue() throws IOException {
+		byte[] raw = compressible(64 * 1024);
+		byte[] deflated = ValueCodec.deflate(raw);
+		assertNotNull(deflated);
+		assertTrue(deflated.length < raw.length - raw.length / 8);
+		assertArrayEquals(raw, ValueCodec.inflate(deflated, 0, deflated.length, raw.length));
+	}
+
+	@Test
+	public void roundTripsAtAnOffset() throws IOException {
+		byte[] raw = compressible(ValueCodec.DEFAULT_THRESHOLD);
+		byte[] deflated = ValueCodec.deflate(raw);
+		byte[] framed = new byte[deflated.length + 10];
+		System.arraycopy(deflated, 0, framed, 7, deflated.length);
+		assertArrayEquals(raw, ValueCodec.inflate(framed, 7, deflated.length, raw.length));
+	}
+
+	@Test
+	public void roundTripsEmptyValue() throws IOException {
+		byte[] deflated = ValueCodec.deflate(new byte[0]);
+		if (deflated != null)
+			assertArrayEquals(new byte[0], ValueCodec.inflate(deflated, 0, deflated.length, 0));
+	}
+
+	@Test
+	public void leavesIncompressibleValue() {
+		byte[] raw = new byte[64 * 1024];
+		new Random(162).nextBytes(raw);
+		assertNull(ValueCodec.deflate(raw));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsValueOverMaxLength() throws IOException {
+		byte[] raw = compressible(64 * 1024);
+		byte[] deflated = ValueCodec.deflate(raw);
+		ValueCodec.inflate(deflated, 0, deflated.length, raw.length - 1);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTruncatedValue() throws IOException {
+		byte[] raw = compressible(64 * 1024);
+		byte[] deflated = ValueCodec.deflate(raw);
+		ValueCodec.inflate(deflated, 0, deflated.length / 2, raw.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsCorruptValue() throws IOException {
+		byte[] raw = compressible(64 * 1024);
+		byte[] deflated = ValueCodec.deflate(raw);
+		Arrays.fill(deflated, 4, deflated.length, (byte) 0xff);
+		ValueCodec.inflate(deflated, 0, deflated.length, raw.length);
+	}
+
+	private static byte[] compressible(int length) {
+		byte[] raw = new byte[length];
+		Random random = new Random(162);
+		for (int i = 0; i < length; i++)
+			raw[i] = (byte) ('a' + random.nextInt(4));
+		return raw;
+	}
+}